@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -123,63 +121,114 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (traceInterrupts)
+			Lib.debug(dbgInt, "Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		addPending(time, type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
 		Stats stats = privilege.stats;
 
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += (long) Stats.KernelTick * count;
+			stats.totalTicks += (long) Stats.KernelTick * count;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += (long) Stats.UserTick * count;
+			stats.totalTicks += (long) Stats.UserTick * count;
 		}
 
-		if (Lib.test(dbgInt))
+		if (traceInterrupts) {
 			System.out.println("== Tick " + stats.totalTicks + " ==");
+		}
+		else if (stats.totalTicks < nextDue) {
+			// nothing can be due yet, so don't bother checking
+			enabled = true;
+			return;
+		}
 
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	/**
+	 * Advance the simulated time straight to the next pending interrupt and
+	 * invoke the handlers that are then due, instead of spinning until it
+	 * arrives. The skipped time is charged to the kernel, exactly as if the
+	 * idle thread had spent it yielding. Does nothing if no interrupts are
+	 * pending.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled. Only the kernel's idle loop should call
+	 * this, since it is only correct when no thread is ready to run.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+		if (nextDue > stats.totalTicks) {
+			long skipped = nextDue - stats.totalTicks;
+			stats.kernelTicks += skipped;
+			stats.idleTicks += skipped;
+			stats.totalTicks = nextDue;
+
+			if (traceInterrupts)
+				System.out.println("== Idle until " + stats.totalTicks + " ==");
+		}
+
+		checkIfDue();
+	}
+
+	private long ticksUntilNextInterrupt() {
+		if (nextDue == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+
+		return nextDue - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (traceInterrupts)
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pendingTime[0] > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (traceInterrupts)
+			Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pendingTime[0] <= time) {
+			String type = pendingType[0];
+			Runnable handler = pendingHandler[0];
 
-			Lib.assertTrue(next.time <= time);
+			// handlers may schedule (or, via a context switch, check for)
+			// other interrupts, so dequeue this one before running it
+			removeFirstPending();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (traceInterrupts)
+				Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,46 +239,169 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// the heap is only partially ordered, so sort a copy for printing
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (before(a, b))
+					return -1;
+				else if (before(b, a))
+					return 1;
+				else
+					return 0;
+			}
+		});
+
+		for (int i = 0; i < numPending; i++) {
+			System.out.println("  " + pendingType[order[i]] + ", scheduled at "
+					+ pendingTime[order[i]]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * Add an interrupt to the pending heap.
+	 * 
+	 * @param time the time at which the interrupt should occur.
+	 * @param type a name for the type of interrupt.
+	 * @param handler the interrupt handler to call.
+	 */
+	private void addPending(long time, String type, Runnable handler) {
+		if (numPending == pendingTime.length) {
+			int capacity = numPending * 2;
+			pendingTime = Arrays.copyOf(pendingTime, capacity);
+			pendingId = Arrays.copyOf(pendingId, capacity);
+			pendingType = Arrays.copyOf(pendingType, capacity);
+			pendingHandler = Arrays.copyOf(pendingHandler, capacity);
+		}
+
+		int i = numPending++;
+		set(i, time, numPendingInterruptsCreated++, type, handler);
+
+		// sift up
+		while (i > 0 && before(i, (i - 1) / 2)) {
+			swap(i, (i - 1) / 2);
+			i = (i - 1) / 2;
+		}
+
+		nextDue = pendingTime[0];
+	}
+
+	/**
+	 * Remove the earliest interrupt from the pending heap.
+	 */
+	private void removeFirstPending() {
+		removePending(0);
+	}
+
+	/**
+	 * Remove the interrupt at heap index <i>i</i> from the pending heap.
+	 */
+	private void removePending(int i) {
+		Lib.assertTrue(i >= 0 && i < numPending);
+
+		int last = --numPending;
+		set(i, pendingTime[last], pendingId[last], pendingType[last],
+				pendingHandler[last]);
+		pendingType[last] = null;
+		pendingHandler[last] = null;
+
+		// sift up, in case the moved entry is earlier than its new parent
+		while (i > 0 && before(i, (i - 1) / 2)) {
+			swap(i, (i - 1) / 2);
+			i = (i - 1) / 2;
+		}
+
+		siftDown(i);
+
+		nextDue = (numPending > 0) ? pendingTime[0] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Move the interrupt at heap index <i>i</i> down the pending heap until
+	 * no interrupt below it must occur before it.
+	 */
+	private void siftDown(int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending)
+				break;
+			if (child + 1 < numPending && before(child + 1, child))
+				child++;
+			if (!before(child, i))
+				break;
+
+			swap(i, child);
+			i = child;
 		}
+	}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+	/**
+	 * Cancel every pending interrupt that would invoke <tt>handler</tt>.
+	 * 
+	 * @param handler the interrupt handler whose interrupts to cancel.
+	 * @return the number of interrupts cancelled.
+	 */
+	private int cancel(Runnable handler) {
+		// pack the interrupts to keep at the front, in one pass
+		int kept = 0;
+		for (int i = 0; i < numPending; i++) {
+			if (pendingHandler[i] != handler) {
+				set(kept, pendingTime[i], pendingId[i], pendingType[i],
+						pendingHandler[i]);
+				kept++;
+			}
+		}
+
+		int cancelled = numPending - kept;
+		if (cancelled == 0)
+			return 0;
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+		for (int i = kept; i < numPending; i++) {
+			pendingType[i] = null;
+			pendingHandler[i] = null;
 		}
+		numPending = kept;
 
-		long time;
+		// packing can break the heap order, so rebuild it bottom-up
+		for (int i = numPending / 2 - 1; i >= 0; i--)
+			siftDown(i);
 
-		String type;
+		nextDue = (numPending > 0) ? pendingTime[0] : Long.MAX_VALUE;
+		return cancelled;
+	}
 
-		Runnable handler;
+	/**
+	 * Test whether the pending interrupt at heap index <i>i</i> must occur
+	 * before the one at index <i>j</i>. Interrupts due at the same time occur
+	 * in the order they were scheduled.
+	 */
+	private boolean before(int i, int j) {
+		if (pendingTime[i] != pendingTime[j])
+			return pendingTime[i] < pendingTime[j];
+		else
+			return pendingId[i] < pendingId[j];
+	}
 
-		private long id;
+	private void set(int i, long time, long id, String type, Runnable handler) {
+		pendingTime[i] = time;
+		pendingId[i] = id;
+		pendingType[i] = type;
+		pendingHandler[i] = handler;
+	}
+
+	private void swap(int i, int j) {
+		long time = pendingTime[i];
+		long id = pendingId[i];
+		String type = pendingType[i];
+		Runnable handler = pendingHandler[i];
+
+		set(i, pendingTime[j], pendingId[j], pendingType[j], pendingHandler[j]);
+		set(j, time, id, type, handler);
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,10 +410,36 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * Pending interrupts, stored as a binary min-heap in parallel arrays
+	 * ordered by time and then by scheduling order. Slot 0 is the next
+	 * interrupt to occur. The arrays are reused, so scheduling an interrupt
+	 * does not allocate.
+	 */
+	private long[] pendingTime = new long[initialPendingCapacity];
+
+	private long[] pendingId = new long[initialPendingCapacity];
+
+	private String[] pendingType = new String[initialPendingCapacity];
+
+	private Runnable[] pendingHandler = new Runnable[initialPendingCapacity];
+
+	private int numPending = 0;
+
+	private static final int initialPendingCapacity = 16;
+
+	/**
+	 * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if none are pending. Lets <tt>tick()</tt> skip <tt>checkIfDue()</tt>
+	 * without touching the heap.
+	 */
+	private long nextDue = Long.MAX_VALUE;
 
 	private static final char dbgInt = 'i';
 
+	/** <tt>true</tt> if interrupt tracing was enabled on the command line. */
+	private final boolean traceInterrupts = Lib.test(dbgInt);
+
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 		public void schedule(long when, String type, Runnable handler) {
 			Interrupt.this.schedule(when, type, handler);
@@ -250,5 +448,17 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long ticksUntilNextInterrupt() {
+			return Interrupt.this.ticksUntilNextInterrupt();
+		}
+
+		public int cancel(Runnable handler) {
+			return Interrupt.this.cancel(handler);
+		}
 	}
 }
@@ -8,6 +8,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.security.PrivilegedAction;
 import java.util.Random;
+import java.util.function.Supplier;
 
 /**
  * Thrown when an assertion fails.
@@ -129,6 +130,20 @@ public final class Lib {
 			System.out.println(message);
 	}
 
+	/**
+	 * Print the message built by <i>message</i> if <i>flag</i> was enabled on
+	 * the command line. The message is only built if it will be printed, so
+	 * use this instead of <tt>debug(char, String)</tt> when building the
+	 * message is expensive or happens often.
+	 * 
+	 * @param flag the debug flag that must be set to print this message.
+	 * @param message builds the debug message.
+	 */
+	public static void debug(char flag, Supplier<String> message) {
+		if (test(flag))
+			System.out.println(message.get());
+	}
+
 	/**
 	 * Tests if <i>flag</i> was enabled on the command line.
 	 * 
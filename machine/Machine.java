@@ -378,6 +378,28 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Record that the kernel loaded a page from a COFF file, for the paging
+	 * statistics printed when Nachos terminates.
+	 */
+	public static void incrNumCOFFReads() {
+		stats.numCOFFReads++;
+	}
+
+	/**
+	 * Record that the kernel read a page from swap.
+	 */
+	public static void incrNumSwapReads() {
+		stats.numSwapReads++;
+	}
+
+	/**
+	 * Record that the kernel wrote a page to swap.
+	 */
+	public static void incrNumSwapWrites() {
+		stats.numSwapWrites++;
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
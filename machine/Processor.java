@@ -40,17 +40,45 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks"),
+				"Processor.engine should be interpreter or blocks");
+
+		// tracing needs to see every instruction and every tick, so only
+		// the interpreter supports it
+		usingBlocks = engine.equals("blocks") && !traceProcessor
+				&& !traceDisassemble && !traceFullDisassemble
+				&& !Lib.test(dbgInterrupt);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new DecodedInstruction[numPhysPages][];
+		blockPages = new BasicBlock[numPhysPages][];
+
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+				tlbSize);
+		Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+				&& tlbSize % tlbAssociativity == 0,
+				"Processor.tlbAssociativity should divide Processor.tlbSize");
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			int numBuckets = 1;
+			while (numBuckets < tlbSize * 2)
+				numBuckets *= 2;
+
+			tlbBuckets = new int[numBuckets];
+			for (int i = 0; i < numBuckets; i++)
+				tlbBuckets[i] = -1;
+			tlbChain = new int[tlbSize];
 		}
 		else {
 			translations = null;
@@ -91,18 +119,171 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		if (usingBlocks)
+			runBlocks();
+
+		// tracing interrupts prints every tick, so advance time one at a time
+		int maxBatch = Lib.test(dbgInterrupt) ? 1 : Integer.MAX_VALUE;
+
+		Instruction inst = new Instruction();
+
+		while (true) {
+			int limit = instructionsUntilInterrupt(maxBatch);
+			int completed = 0;
+
+			try {
+				while (completed < limit) {
+					inst.run();
+					completed++;
+				}
+			}
+			catch (MipsException e) {
+				// no interrupt can be due yet, so this only advances time
+				if (completed > 0)
+					privilege.interrupt.tick(false, completed);
+
+				e.handle();
+
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			privilege.interrupt.tick(false, completed);
+		}
+	}
+
+	/**
+	 * Return the number of instructions, up to <i>max</i>, that can be
+	 * executed before their ticks make the next pending interrupt due. The
+	 * last instruction counted is the one whose tick reaches the interrupt, so
+	 * the result is always at least 1. The clock only has to be advanced (and
+	 * checked for due interrupts) once for all of them.
+	 * 
+	 * @param max the most instructions to allow.
+	 * @return the number of instructions that can be executed.
+	 */
+	private int instructionsUntilInterrupt(int max) {
+		long untilDue = privilege.interrupt.ticksUntilNextInterrupt();
+
+		if (untilDue >= (long) max * Stats.UserTick)
+			return max;
+
+		return (int) Math.max(1, (untilDue + Stats.UserTick - 1)
+				/ Stats.UserTick);
+	}
+
+	/**
+	 * Execute instructions a basic block at a time. Never returns.
+	 * 
+	 * <p>
+	 * Each instruction still costs <tt>Stats.UserTick</tt>, but the ticks for
+	 * a block are charged together once the block is done. A block is cut
+	 * short at the instruction whose tick makes the next interrupt due, so
+	 * interrupt handlers run at exactly the same time as they would if the
+	 * clock were advanced after every instruction.
+	 */
+	private void runBlocks() {
 		Instruction inst = new Instruction();
 
 		while (true) {
+			blockCompleted = 0;
+
 			try {
-				inst.run();
+				runBlock(inst);
 			}
 			catch (MipsException e) {
+				// no interrupt can be due yet, so this only advances time
+				if (blockCompleted > 0)
+					privilege.interrupt.tick(false, blockCompleted);
+
 				e.handle();
+
+				privilege.interrupt.tick(false);
+				continue;
 			}
 
-			privilege.interrupt.tick(false);
+			privilege.interrupt.tick(false, blockCompleted);
+		}
+	}
+
+	/**
+	 * Run the basic block at the current PC, until it ends, control leaves it,
+	 * or the next interrupt becomes due. The number of instructions that
+	 * completed is left in <tt>blockCompleted</tt>, whether or not an
+	 * exception is thrown.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 * @exception MipsException if an instruction caused an exception.
+	 */
+	private void runBlock(Instruction inst) throws MipsException {
+		int pc = registers[regPC];
+		int paddr = translateFetch(pc);
+
+		BasicBlock block = getBlock(paddr);
+
+		// stop at the instruction whose tick reaches the next interrupt
+		int limit = instructionsUntilInterrupt(block.instructions.length);
+
+		while (blockCompleted < limit) {
+			inst.run(block.instructions[blockCompleted], paddr
+					+ blockCompleted * 4);
+			blockCompleted++;
+
+			// a taken branch (after its delay slot) leaves the block
+			if (registers[regPC] != pc + blockCompleted * 4)
+				break;
+		}
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * building it if this is the first time it has been entered.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private BasicBlock getBlock(int paddr) {
+		BasicBlock[] page = blockPages[paddr / pageSize];
+		if (page == null) {
+			page = new BasicBlock[pageSize / 4];
+			blockPages[paddr / pageSize] = page;
 		}
+
+		int index = (paddr % pageSize) / 4;
+		if (page[index] == null)
+			page[index] = new BasicBlock(paddr);
+
+		return page[index];
+	}
+
+	/**
+	 * Return the decoding of the instruction word currently stored at the
+	 * specified physical address.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the instruction word stored there.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction getDecoded(int paddr, int value) {
+		DecodedInstruction[] page = decodedPages[paddr / pageSize];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodedPages[paddr / pageSize] = page;
+		}
+
+		// the kernel may overwrite physical memory directly, so only trust
+		// a cached decoding if it was made from the same instruction word
+		int index = (paddr % pageSize) / 4;
+		DecodedInstruction decoded = page[index];
+		if (decoded == null) {
+			decoded = new DecodedInstruction(value);
+			page[index] = decoded;
+		}
+		else if (decoded.value != value) {
+			decoded.decode(value);
+		}
+
+		return decoded;
 	}
 
 	/**
@@ -175,6 +356,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		fetchEntry = null;
 	}
 
 	/**
@@ -188,6 +370,22 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. If
+	 * this equals <tt>getTLBSize()</tt>, the TLB is fully associative.
+	 * Otherwise, entry <i>number</i> belongs to set
+	 * <tt>number / getTLBAssociativity()</tt>, and a virtual page can only be
+	 * mapped by an entry in set
+	 * <tt>vpn % (getTLBSize() / getTLBAssociativity())</tt>.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +403,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * By default the TLB is fully associative, so the location of an entry
+	 * within the TLB does not affect anything. If the TLB is set-associative,
+	 * the entry must be placed in the set for its virtual page (see
+	 * <tt>getTLBAssociativity()</tt>), or it will never be used.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -215,7 +415,71 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		if (translations[number].valid)
+			unindexTLBEntry(number);
+
+		fetchEntry = null;
+
 		translations[number] = new TranslationEntry(entry);
+
+		if (translations[number].valid)
+			indexTLBEntry(number);
+	}
+
+	/**
+	 * Add a valid TLB entry to the chain for its virtual page's bucket.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void indexTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		tlbChain[number] = tlbBuckets[bucket];
+		tlbBuckets[bucket] = number;
+	}
+
+	/**
+	 * Remove a valid TLB entry from the chain for its virtual page's bucket.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void unindexTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbChain[number];
+			return;
+		}
+
+		for (int i = tlbBuckets[bucket]; i != -1; i = tlbChain[i]) {
+			if (tlbChain[i] == number) {
+				tlbChain[i] = tlbChain[number];
+				return;
+			}
+		}
+
+		Lib.assertNotReached();
+	}
+
+	/**
+	 * Find the TLB entry that maps the specified virtual page. If more than one
+	 * entry in the page's set maps it, the one with the lowest index is used.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the matching TLB entry, or <tt>null</tt> if there is none.
+	 */
+	private TranslationEntry lookupTLB(int vpn) {
+		int set = vpn % (tlbSize / tlbAssociativity);
+
+		int match = -1;
+		for (int i = tlbBuckets[vpn & (tlbBuckets.length - 1)]; i != -1;
+				i = tlbChain[i]) {
+			if (translations[i].vpn == vpn && i / tlbAssociativity == set
+					&& (match == -1 || i < match))
+				match = i;
+		}
+
+		return (match == -1) ? null : translations[match];
 	}
 
 	/**
@@ -238,6 +502,20 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard any basic blocks built from the specified physical page. The
+	 * block engine does not notice when the kernel overwrites memory, so a
+	 * kernel that reuses a physical page for different contents, for example
+	 * when paging, must call this after filling the page.
+	 *
+	 * @param ppn the physical page whose contents changed.
+	 */
+	public void invalidateInstructionCache(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		blockPages[ppn] = null;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -292,7 +570,7 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -319,19 +597,15 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look up the vpn in the TLB index
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			entry = lookupTLB(vpn);
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+			privilege.stats.numTLBHits++;
 		}
 
 		// check if trying to write a read-only page
@@ -354,11 +628,46 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Translate the address of an instruction fetch. Fetches almost always come
+	 * from the same page as the previous one, so the entry that translated the
+	 * last fetch is remembered and reused as long as it still maps the page.
+	 * Otherwise this is the same as <tt>translate(vaddr, 4, false)</tt>.
+	 * 
+	 * @param vaddr the virtual address of the instruction.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateFetch(int vaddr) throws MipsException {
+		int vpn = pageFromAddress(vaddr);
+		TranslationEntry entry = fetchEntry;
+
+		// the kernel can change an entry's fields at any time, so recheck
+		// everything translate() would except the page it maps
+		if (entry != null && vpn == fetchVPN && (vaddr & 0x3) == 0
+				&& entry.valid && entry.ppn >= 0 && entry.ppn < numPhysPages
+				&& (usingTLB || translations[vpn] == entry)
+				&& !traceProcessor) {
+			if (usingTLB)
+				privilege.stats.numTLBHits++;
+
+			entry.used = true;
+			return (entry.ppn * pageSize) + offsetFromAddress(vaddr);
+		}
+
+		int paddr = translate(vaddr, 4, false);
+
+		fetchVPN = vpn;
+		fetchEntry = usingTLB ? lookupTLB(vpn) : translations[vpn];
+
+		return paddr;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -369,7 +678,7 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
@@ -378,7 +687,7 @@ public final class Processor {
 		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				size);
 
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -395,7 +704,7 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
@@ -556,9 +865,30 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/**
+	 * The translation entry used by the last instruction fetch, or
+	 * <tt>null</tt> if it may no longer be the right one.
+	 */
+	private TranslationEntry fetchEntry = null;
+
+	/** The virtual page mapped by <tt>fetchEntry</tt>. */
+	private int fetchVPN;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+
+	/**
+	 * Hash buckets indexing the valid TLB entries by virtual page number.
+	 * Each bucket holds the index of the first entry in its chain, or -1.
+	 */
+	private int[] tlbBuckets;
+
+	/** The next entry in each valid TLB entry's bucket chain, or -1. */
+	private int[] tlbChain;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -577,6 +907,25 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Instructions that have already been decoded, one array per physical
+	 * page, indexed by word within the page. A page's array is allocated the
+	 * first time an instruction is fetched from it.
+	 */
+	private DecodedInstruction[][] decodedPages;
+
+	/** <tt>true</tt> if executing a basic block at a time. */
+	private boolean usingBlocks;
+
+	/**
+	 * Basic blocks that have already been built, indexed the same way as
+	 * <tt>decodedPages</tt> by the address of their first instruction.
+	 */
+	private BasicBlock[][] blockPages;
+
+	/** The number of instructions completed by the current basic block. */
+	private int blockCompleted;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -586,6 +935,18 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInterrupt = 'i';
+
+	/*
+	 * Debug flags can't change once Nachos has started, so they are looked up
+	 * once here instead of on every instruction.
+	 */
+	private final boolean traceProcessor = Lib.test(dbgProcessor);
+
+	private final boolean traceDisassemble = Lib.test(dbgDisassemble);
+
+	private final boolean traceFullDisassemble = Lib.test(dbgFullDisassemble);
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
@@ -612,7 +973,7 @@ public final class Processor {
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble || traceFullDisassemble)
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
@@ -640,88 +1001,92 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Run an instruction from a basic block. The block's page has already
+		 * been translated, so the fetch only needs to check that the word in
+		 * memory is still the one that was decoded.
+		 * 
+		 * @param decoded the instruction as it was decoded.
+		 * @param paddr the physical address of the instruction.
+		 */
+		public void run(DecodedInstruction decoded, int paddr)
+				throws MipsException {
+			this.paddr = paddr;
+			value = Lib.bytesToInt(mainMemory, paddr);
+
+			if (decoded.value != value)
+				decoded.decode(value);
+
+			load(decoded);
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((traceDisassemble && !traceProcessor)
+					|| traceFullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (traceProcessor)
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translateFetch(registers[regPC]);
+			value = Lib.bytesToInt(mainMemory, paddr);
+
+			if (traceProcessor)
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			load(getDecoded(paddr, value));
+		}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+		/**
+		 * Set up the operands of an already decoded instruction.
+		 * 
+		 * @param decoded the decoded instruction.
+		 */
+		private void load(DecodedInstruction decoded) {
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+				jtarget = (registers[regNextPC] & 0xF0000000)
+						| decoded.jumpOffset;
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -742,13 +1107,13 @@ public final class Processor {
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble || traceFullDisassemble)
 				print();
 		}
 
 		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (traceDisassemble && traceProcessor
+					&& !traceFullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
@@ -780,7 +1145,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (traceFullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -792,7 +1157,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)
+					if (traceFullDisassemble
 							&& (i != 0 || !test(Mips.DST))
 							&& !test(Mips.DELAYEDLOAD)) {
 						System.out
@@ -824,7 +1189,7 @@ public final class Processor {
 					minCharsPrinted += 4;
 					maxCharsPrinted += 5;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (traceFullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -864,8 +1229,8 @@ public final class Processor {
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (traceDisassemble && traceProcessor
+					&& !traceFullDisassemble)
 				System.out.print("\n");
 		}
 
@@ -1058,7 +1423,7 @@ public final class Processor {
 				registers[dstReg] = (int) dst;
 
 			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
+				if (traceFullDisassemble) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
 						System.out.print(" (delayed load)");
@@ -1071,13 +1436,13 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((traceDisassemble && !traceProcessor)
+					|| traceFullDisassemble)
 				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int value, paddr, op, rs, rt, rd, sh, func, imm;
 
 		int operation, format, flags;
 
@@ -1094,6 +1459,128 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A run of straight-line instructions within one physical page. A block
+	 * ends after the delay slot of its first branch or jump, at a syscall or
+	 * illegal instruction, or at the end of the page, whichever comes first.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr) {
+			int end = (paddr / pageSize + 1) * pageSize;
+
+			int length = 0;
+			for (int addr = paddr; addr < end; addr += 4) {
+				DecodedInstruction decoded =
+					getDecoded(addr, Lib.bytesToInt(mainMemory, addr));
+				length++;
+
+				if (Lib.test(Mips.BRANCH, decoded.flags)) {
+					// include the delay slot, if it's on this page
+					if (addr + 4 < end)
+						length++;
+					break;
+				}
+
+				if (decoded.operation == Mips.SYSCALL
+						|| decoded.operation == Mips.UNIMPL
+						|| decoded.operation == Mips.INVALID)
+					break;
+			}
+
+			instructions = new DecodedInstruction[length];
+			for (int i = 0; i < length; i++) {
+				int addr = paddr + i * 4;
+				instructions[i] =
+					getDecoded(addr, Lib.bytesToInt(mainMemory, addr));
+			}
+		}
+
+		DecodedInstruction[] instructions;
+	}
+
+	/**
+	 * The parts of an instruction that depend only on the instruction word,
+	 * and not on the contents of any register. These are computed once and
+	 * reused every time the same word is fetched from the same physical
+	 * address.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			decode(value);
+		}
+
+		void decode(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch and jump targets use the sign-extended immediate
+			branchOffset = imm << 2;
+			jumpOffset = Lib.extract(value, 0, 26) << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm &= 0xFFFF;
+		}
+
+		/** The instruction word this was decoded from. */
+		int value;
+
+		int op, rs, rt, rd, sh, func, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+
+		int branchOffset, jumpOffset;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
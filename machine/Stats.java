@@ -25,7 +25,7 @@ public final class Stats {
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses + ", TLB hits " + numTLBHits);
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
@@ -48,6 +48,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The number of kernel ticks the clock skipped because every thread was
+	 * blocked. Included in <tt>kernelTicks</tt>.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -66,6 +72,9 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of address translations that hit in the TLB. */
+	public long numTLBHits = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
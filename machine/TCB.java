@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -39,6 +41,60 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.threadBackend", "platform");
+		Lib.assertTrue(backend.equals("platform") || backend.equals("virtual"),
+				"TCB.threadBackend must be platform or virtual");
+
+		if (backend.equals("virtual")) {
+			virtualThreadFactory = findVirtualThreadFactory();
+			if (virtualThreadFactory == null)
+				System.out.print(" (virtual threads unsupported, "
+						+ "using platform threads)");
+		}
+
+		spinCount = Config.getInteger("TCB.spinCount", 0);
+		Lib.assertTrue(spinCount >= 0);
+
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				virtualThreadFactory != null ? maxVirtualThreads : maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> and
+	 * <tt>Thread.Builder.unstarted(Runnable)</tt> reflectively, so that this
+	 * class still compiles and runs on JVMs without virtual threads.
+	 * 
+	 * @return a builder whose <tt>unstarted()</tt> method creates virtual
+	 * threads, or <tt>null</tt> if virtual threads are not available.
+	 */
+	private static Object findVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstartedMethod = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+			return builder;
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create the (unstarted) Java thread that will run a TCB, using the
+	 * backend selected by <tt>TCB.threadBackend</tt>.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadFactory == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedMethod.invoke(virtualThreadFactory, target);
+		}
+		catch (Exception e) {
+			throw new Error("could not create virtual thread", e);
+		}
 	}
 
 	/**
@@ -68,7 +124,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +158,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -291,32 +347,36 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * The flag is polled <tt>TCB.spinCount</tt> times before the Java thread
+	 * parks. <tt>LockSupport.park()</tt> can return spuriously, so it is
+	 * always called in a loop that rechecks the flag.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		for (int i = 0; i < spinCount && !running; i++)
+			Thread.onSpinWait();
+
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
+	 * TCB. Because <tt>running</tt> is volatile, everything the waking thread
+	 * wrote before this call is visible to this TCB once it sees the flag.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -341,11 +401,39 @@ public final class TCB {
 	}
 
 	/**
-	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * The default maximum number of started, non-destroyed TCB's that can be
+	 * in existence when each TCB is backed by a platform thread. Can be
+	 * overridden with <tt>TCB.maxThreads</tt>.
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default maximum number of started, non-destroyed TCB's when
+	 * <tt>TCB.threadBackend = virtual</tt>. Virtual threads do not hold an OS
+	 * thread while parked, so far more of them can exist at once.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
+	/**
+	 * The limit actually enforced by <tt>start(Runnable)</tt>.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * The <tt>Thread.Builder</tt> used to create virtual threads, or
+	 * <tt>null</tt> if TCBs are backed by platform threads.
+	 */
+	private static Object virtualThreadFactory = null;
+
+	private static Method unstartedMethod = null;
+
+	/**
+	 * How many times <tt>waitForInterrupt()</tt> polls <tt>running</tt> before
+	 * parking. Spinning only pays off when the JVM has a spare core for the
+	 * thread being switched to, so it is off by default.
+	 */
+	private static int spinCount = 0;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -368,7 +456,7 @@ public final class TCB {
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+	 * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
 	 * first TCB is created, this vector is basically never empty.
@@ -403,7 +491,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
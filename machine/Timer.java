@@ -38,6 +38,8 @@ public final class Timer {
 			}
 		};
 
+		tickless = Config.getBoolean("Timer.tickless", false);
+
 		scheduleInterrupt();
 	}
 
@@ -60,7 +62,70 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Test whether the timer runs in tickless mode, selected by
+	 * <tt>Timer.tickless</tt>. In tickless mode the timer stops raising
+	 * periodic interrupts while the CPU is idle, and instead interrupts once at
+	 * the deadline set by <tt>setNextDeadline()</tt>.
+	 * 
+	 * @return <tt>true</tt> if the timer is tickless.
+	 */
+	public boolean isTickless() {
+		return tickless;
+	}
+
+	/**
+	 * Tell the timer the earliest time at which the kernel needs a timer
+	 * interrupt, such as the wake time of the first sleeping thread.
+	 * 
+	 * @param time the absolute time of the next deadline, or
+	 * <tt>Long.MAX_VALUE</tt> if there is none.
+	 */
+	public void setNextDeadline(long time) {
+		nextDeadline = time;
+	}
+
+	/**
+	 * Called by the kernel, with interrupts disabled, when no thread is ready
+	 * to run. In tickless mode, the pending periodic interrupt is replaced by
+	 * one at the next deadline, so that <tt>Interrupt.idle()</tt> can skip
+	 * straight to it. Does nothing if there is no deadline or it is not later
+	 * than the periodic interrupt.
+	 */
+	public void idle() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!tickless || sleeping || nextDeadline == Long.MAX_VALUE
+				|| nextDeadline <= nextInterruptTime)
+			return;
+
+		privilege.interrupt.cancel(timerInterrupt);
+		privilege.interrupt.schedule(nextDeadline - getTime(), "timer",
+				timerInterrupt);
+
+		nextInterruptTime = nextDeadline;
+		sleeping = true;
+	}
+
+	/**
+	 * Called by the kernel, with interrupts disabled, when it stops idling.
+	 * If the timer was programmed for a deadline by <tt>idle()</tt> that has
+	 * not arrived yet, periodic interrupts resume so that threads can be
+	 * preempted again.
+	 */
+	public void resume() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!sleeping)
+			return;
+
+		privilege.interrupt.cancel(timerInterrupt);
+		sleeping = false;
+		scheduleInterrupt();
+	}
+
 	private void timerInterrupt() {
+		sleeping = false;
 		scheduleInterrupt();
 		scheduleAutoGraderInterrupt();
 
@@ -75,6 +140,7 @@ public final class Timer {
 		delay += Lib.random(delay / 10) - (delay / 20);
 
 		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		nextInterruptTime = getTime() + delay;
 	}
 
 	private void scheduleAutoGraderInterrupt() {
@@ -90,4 +156,14 @@ public final class Timer {
 	private Privilege privilege;
 
 	private Runnable handler = null;
+
+	private boolean tickless;
+
+	/** <tt>true</tt> while the timer is programmed for a deadline. */
+	private boolean sleeping = false;
+
+	private long nextDeadline = Long.MAX_VALUE;
+
+	/** The time at which the pending timer interrupt is scheduled. */
+	private long nextInterruptTime;
 }
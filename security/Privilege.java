@@ -157,6 +157,35 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. Interrupt
+		 * handlers are only checked for after the last tick, so none may
+		 * become due before then.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of ticks until the earliest pending interrupt is
+		 * due, or <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 * 
+		 * @return the number of ticks until the next interrupt.
+		 */
+		public long ticksUntilNextInterrupt();
+
+		/**
+		 * Cancel every pending interrupt that would invoke the specified
+		 * handler.
+		 * 
+		 * @param handler the interrupt handler whose interrupts to cancel.
+		 * @return the number of interrupts cancelled.
+		 */
+		public int cancel(Runnable handler);
 	}
 
 	/**
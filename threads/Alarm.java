@@ -1,19 +1,26 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
  */
 public class Alarm {
-    // HashMap to store threads and their wake times
-    private HashMap<KThread, Long> waitMap;
-    // Priority queue to store wake times
-    private PriorityQueue<Long> waitQueue;
-    
+    /**
+     * Pending wakeups, stored as a binary min-heap ordered by wake time and
+     * then by the order they were scheduled. Each entry records its own heap
+     * index, so a cancelled wakeup can be removed in <i>O(log n)</i>.
+     */
+    private Wakeup[] heap = new Wakeup[16];
+
+    /** The number of pending wakeups in <tt>heap</tt>. */
+    private int size = 0;
+
+    /** Stamp given to the next wakeup, to break wake time ties. */
+    private long nextSequence = 0;
+
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -22,9 +29,6 @@ public class Alarm {
      * <b>Note</b>: Nachos will not function correctly with more than one alarm.
      */
     public Alarm() {
-        waitMap = new HashMap<KThread, Long>();
-        waitQueue = new PriorityQueue<Long>();
-        
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
                 timerInterrupt();
@@ -38,34 +42,22 @@ public class Alarm {
      * thread to yield, forcing a context switch if there is another thread that
      * should be run.
      * 
-     * Also wakes up any threads that have waited long enough.
+     * Also wakes up any threads that have waited long enough. Only the expired
+     * entries at the head of the heap are touched, so waking <i>k</i> of
+     * <i>n</i> sleepers costs <i>O(k log n)</i>, and nothing is allocated when
+     * no thread is due.
      */
     public void timerInterrupt() {
         // Interrupts are already disabled when this method is called
         
         long currentTime = Machine.timer().getTime();
         
-        // Check if any threads need to be woken up
-        while (!waitQueue.isEmpty() && waitQueue.peek() <= currentTime) {
-            long wakeTime = waitQueue.poll();
-            
-            // Find all threads that need to wake up at this time
-            for (KThread thread : waitMap.keySet()) {
-                if (waitMap.get(thread) != null && waitMap.get(thread) == wakeTime) {
-                    thread.ready();
-                    waitMap.put(thread, null); // Mark as processed
-                }
-            }
-        }
-        
-        // Clean up the map by removing processed entries
-        HashMap<KThread, Long> newMap = new HashMap<KThread, Long>();
-        for (KThread thread : waitMap.keySet()) {
-            if (waitMap.get(thread) != null) {
-                newMap.put(thread, waitMap.get(thread));
-            }
+        while (size > 0 && heap[0].wakeTime <= currentTime) {
+            Wakeup wakeup = heap[0];
+            remove(0);
+            wakeup.fire();
         }
-        waitMap = newMap;
+        updateDeadline();
         
         // Yield the current thread to allow other threads to run
         KThread.currentThread().yield();
@@ -88,23 +80,168 @@ public class Alarm {
         if (x <= 0)
             return;
             
-        Machine.interrupt().disable();
-        
-        // Calculate the absolute wake-up time
-        long wakeTime = Machine.timer().getTime() + x;
+        boolean intStatus = Machine.interrupt().disable();
         
-        // Get current thread
-        KThread currentThread = KThread.currentThread();
+        add(new Wakeup(Machine.timer().getTime() + x, KThread.currentThread(), null));
         
-        // Add to data structures
-        waitMap.put(currentThread, wakeTime);
-        waitQueue.add(wakeTime);
+        KThread.sleep();
         
-        // Put current thread to sleep
-        currentThread.sleep();
-        
-        Machine.interrupt().enable();
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Arrange for <tt>handler</tt> to run in the timer interrupt handler,
+     * during the first timer interrupt at least <i>x</i> ticks from now. Unlike
+     * <tt>waitUntil()</tt>, the current thread does not sleep. The handler
+     * runs with interrupts disabled and must not block.
+     * 
+     * @param x the minimum number of clock ticks until the handler runs.
+     * @param handler the callback to run.
+     * @return a handle that can cancel the wakeup before it happens.
+     */
+    public Wakeup waitUntil(long x, Runnable handler) {
+        Lib.assertTrue(handler != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        Wakeup wakeup = new Wakeup(Machine.timer().getTime() + Math.max(x, 0),
+                null, handler);
+        add(wakeup);
+
+        Machine.interrupt().restore(intStatus);
+        return wakeup;
+    }
+
+    /**
+     * A pending wakeup: either a thread sleeping in <tt>waitUntil(long)</tt>,
+     * or a callback scheduled with <tt>waitUntil(long, Runnable)</tt>.
+     */
+    public class Wakeup {
+        private Wakeup(long wakeTime, KThread thread, Runnable handler) {
+            this.wakeTime = wakeTime;
+            this.sequence = nextSequence++;
+            this.thread = thread;
+            this.handler = handler;
+        }
+
+        /**
+         * Cancel this wakeup, if it has not happened yet. Takes
+         * <i>O(log n)</i> time.
+         * 
+         * @return <tt>true</tt> if the wakeup was still pending.
+         */
+        public boolean cancel() {
+            boolean intStatus = Machine.interrupt().disable();
+
+            boolean pending = (heapIndex >= 0);
+            if (pending) {
+                remove(heapIndex);
+                updateDeadline();
+            }
+
+            Machine.interrupt().restore(intStatus);
+            return pending;
+        }
+
+        /**
+         * Return the time at which this wakeup is due.
+         * 
+         * @return the absolute wake time, in ticks.
+         */
+        public long getWakeTime() {
+            return wakeTime;
+        }
+
+        private void fire() {
+            if (thread != null)
+                thread.ready();
+            else
+                handler.run();
+        }
+
+        private final long wakeTime;
+        private final long sequence;
+        private final KThread thread;
+        private final Runnable handler;
+
+        /** Position in <tt>heap</tt>, or -1 once fired or cancelled. */
+        private int heapIndex = -1;
+    }
+
+    private void add(Wakeup wakeup) {
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size * 2);
+
+        heap[size] = wakeup;
+        wakeup.heapIndex = size;
+        siftUp(size++);
+
+        if (wakeup.heapIndex == 0)
+            updateDeadline();
+    }
+
+    private void remove(int i) {
+        Wakeup removed = heap[i];
+        removed.heapIndex = -1;
+
+        int last = --size;
+        if (i != last) {
+            heap[i] = heap[last];
+            heap[i].heapIndex = i;
+            heap[last] = null;
+            siftDown(siftUp(i));
+        }
+        else {
+            heap[last] = null;
+        }
     }
+
+    private int siftUp(int i) {
+        while (i > 0 && before(heap[i], heap[(i - 1) / 2])) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+        return i;
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && before(heap[child + 1], heap[child]))
+                child++;
+            if (!before(heap[child], heap[i]))
+                break;
+
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private static boolean before(Wakeup a, Wakeup b) {
+        if (a.wakeTime != b.wakeTime)
+            return a.wakeTime < b.wakeTime;
+        return a.sequence < b.sequence;
+    }
+
+    private void swap(int i, int j) {
+        Wakeup w = heap[i];
+        heap[i] = heap[j];
+        heap[j] = w;
+        heap[i].heapIndex = i;
+        heap[j].heapIndex = j;
+    }
+
+    /**
+     * Tell the timer when the first sleeping thread is due, so that a tickless
+     * timer can interrupt right then instead of every 500 ticks.
+     */
+    private void updateDeadline() {
+        Machine.timer().setNextDeadline(size == 0 ? Long.MAX_VALUE
+                : heap[0].wakeTime);
+    }
+
     public static void alarmTest1() {
         int durations[] = {1000, 10*1000, 100*1000};
         long t0, t1;
@@ -0,0 +1,284 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A bounded buffer of words shared between any number of speakers and
+ * listeners. Unlike a <tt>Communicator</tt>, a speaker does not wait for a
+ * listener to take its word, only for room in the buffer, and the batch methods
+ * <tt>speakAll()</tt> and <tt>listen(int[])</tt> move as many words as possible
+ * per lock acquisition and per context switch.
+ *
+ * <p>
+ * Words from a single call are delivered in order. A batch larger than the free
+ * space is delivered in several pieces, which may be interleaved with the words
+ * of other speakers.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel with room for <tt>defaultCapacity</tt> words.
+	 */
+	public Channel() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words the channel can buffer.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Add a word to the channel, blocking while the channel is full.
+	 *
+	 * @param word the word to send.
+	 */
+	public void speak(int word) {
+		lock.acquire();
+
+		while (count == buffer.length)
+			waitForRoom();
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+		wakeListener();
+		wakeSpeaker();
+
+		lock.release();
+	}
+
+	/**
+	 * Add every word in <tt>words</tt> to the channel, in order. Blocks while
+	 * the channel is full, and only returns once the last word is buffered.
+	 *
+	 * @param words the words to send.
+	 */
+	public void speakAll(int[] words) {
+		speakAll(words, 0, words.length);
+	}
+
+	/**
+	 * Add <tt>length</tt> words, starting at <tt>words[offset]</tt>, to the
+	 * channel, in order. Blocks while the channel is full, and only returns
+	 * once the last word is buffered.
+	 *
+	 * @param words the array holding the words to send.
+	 * @param offset the index of the first word to send.
+	 * @param length the number of words to send.
+	 */
+	public void speakAll(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		lock.acquire();
+
+		while (length > 0) {
+			while (count == buffer.length)
+				waitForRoom();
+
+			int n = Math.min(length, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			int firstPart = Math.min(n, buffer.length - tail);
+
+			System.arraycopy(words, offset, buffer, tail, firstPart);
+			System.arraycopy(words, offset + firstPart, buffer, 0, n - firstPart);
+
+			count += n;
+			offset += n;
+			length -= n;
+			wakeListener();
+		}
+		wakeSpeaker();
+
+		lock.release();
+	}
+
+	/**
+	 * Remove a word from the channel, blocking while the channel is empty.
+	 *
+	 * @return the word removed.
+	 */
+	public int listen() {
+		lock.acquire();
+
+		while (count == 0)
+			waitForWords();
+
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+		wakeSpeaker();
+		wakeListener();
+
+		lock.release();
+		return word;
+	}
+
+	/**
+	 * Remove as many words as are available, up to <tt>out.length</tt>, and
+	 * store them in <tt>out</tt> in order. Blocks only while the channel is
+	 * empty.
+	 *
+	 * @param out the array to fill. Must not be empty.
+	 * @return the number of words stored in <tt>out</tt>, at least one.
+	 */
+	public int listen(int[] out) {
+		Lib.assertTrue(out.length > 0);
+
+		lock.acquire();
+
+		while (count == 0)
+			waitForWords();
+
+		int n = Math.min(count, out.length);
+		int firstPart = Math.min(n, buffer.length - head);
+
+		System.arraycopy(buffer, head, out, 0, firstPart);
+		System.arraycopy(buffer, 0, out, firstPart, n - firstPart);
+
+		head = (head + n) % buffer.length;
+		count -= n;
+		wakeSpeaker();
+		wakeListener();
+
+		lock.release();
+		return n;
+	}
+
+	private void waitForRoom() {
+		waitingSpeakers++;
+		notFull.sleep();
+		waitingSpeakers--;
+	}
+
+	private void waitForWords() {
+		waitingListeners++;
+		notEmpty.sleep();
+		waitingListeners--;
+	}
+
+	/**
+	 * Wake one waiting listener if there is something to take. Called by
+	 * speakers after adding words, and by listeners after taking some, so a
+	 * listener that leaves words behind wakes the next one and waking one at a
+	 * time is enough.
+	 */
+	private void wakeListener() {
+		if (count > 0 && waitingListeners > 0)
+			notEmpty.wake();
+	}
+
+	/**
+	 * Wake one waiting speaker if there is room. Called by listeners after
+	 * taking words, and by speakers after adding some, so the wakeup is passed
+	 * on while room remains.
+	 */
+	private void wakeSpeaker() {
+		if (count < buffer.length && waitingSpeakers > 0)
+			notFull.wake();
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final Channel channel = new Channel(16);
+		final int total = 1000;
+
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				int[] batch = new int[100];
+				for (int sent = 0; sent < total; sent += batch.length) {
+					for (int i = 0; i < batch.length; i++)
+						batch[i] = sent + i;
+					channel.speakAll(batch);
+				}
+				channel.speak(-1);
+			}
+		}).setName("channel speaker");
+		speaker.fork();
+
+		int[] out = new int[7];
+		int expected = 0;
+		boolean done = false;
+		while (!done) {
+			int n = channel.listen(out);
+			Lib.assertTrue(n >= 1 && n <= out.length);
+			for (int i = 0; i < n; i++) {
+				if (out[i] == -1) {
+					Lib.assertTrue(expected == total && i == n - 1);
+					done = true;
+				}
+				else {
+					Lib.assertTrue(out[i] == expected++);
+				}
+			}
+		}
+
+		speaker.join();
+
+		wakeupChainTest();
+	}
+
+	/**
+	 * Test that one batch wakes every listener it has words for: two listeners
+	 * block on an empty channel, and a single <tt>speakAll()</tt> must let
+	 * both of them return.
+	 */
+	private static void wakeupChainTest() {
+		final Channel channel = new Channel(16);
+		final Semaphore done = new Semaphore(0);
+
+		for (int i = 0; i < 2; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					Lib.assertTrue(channel.listen() < 16);
+					done.V();
+				}
+			}).setName("channel listener").fork();
+		}
+
+		while (channel.waitingListeners < 2)
+			KThread.yield();
+
+		int[] words = new int[16];
+		for (int i = 0; i < words.length; i++)
+			words[i] = i;
+		channel.speakAll(words);
+
+		done.P();
+		done.P();
+
+		int[] rest = new int[16];
+		Lib.assertTrue(channel.listen(rest) == 14);
+	}
+
+	/** The capacity of a channel created with <tt>Channel()</tt>. */
+	public static final int defaultCapacity = 64;
+
+	private int[] buffer;
+
+	/** Index of the oldest buffered word. */
+	private int head = 0;
+
+	/** The number of buffered words. */
+	private int count = 0;
+
+	private int waitingSpeakers = 0;
+
+	private int waitingListeners = 0;
+
+	private Lock lock;
+
+	private Condition2 notEmpty;
+
+	private Condition2 notFull;
+}
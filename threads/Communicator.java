@@ -2,54 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-// public class Communicator {
-//     private Lock lock;
-//     private Condition2 speakerCondition;
-//     private Condition2 listenerCondition;
-//     private int message;
-//     private boolean messageReady;
-
-//     public Communicator() {
-//         lock = new Lock();
-//         speakerCondition = new Condition2(lock);
-//         listenerCondition = new Condition2(lock);
-//         messageReady = false;
-//     }
-
-//     public void speak(int word) {
-//         lock.acquire();
-        
-//         while (messageReady) {
-//             speakerCondition.sleep(); // Wait until the previous message is consumed
-//         }
-
-//         message = word;
-//         messageReady = true;
-//         listenerCondition.wake(); // Notify listener
-//         speakerCondition.sleep(); // Wait for listener to acknowledge
-
-//         lock.release();
-//     }
-
-//     public int listen() {
-//         lock.acquire();
-        
-//         while (!messageReady) {
-//             listenerCondition.sleep(); // Wait for a message
-//         }
-
-//         int receivedMessage = message;
-//         messageReady = false;
-//         speakerCondition.wake(); // Notify speaker that message is received
-
-//         lock.release();
-//         return receivedMessage;
-//     }
-// }
-
-
-
-// package nachos.threads;
+import java.util.HashMap;
 
 /**
  * A Communicator allows threads to synchronously exchange messages.
@@ -58,38 +11,20 @@ import nachos.machine.*;
  *
  * <p>Key points:
  * <ul>
- *   <li>Only one lock is used.
- *   <li>Two condition variables are used:
- *         one (speakerQueue) for waiting speakers and one (listenerQueue) for waiting listeners.
- *   <li>A speaker waits until there is at least one listener waiting and no unclaimed message.
- *   <li>A listener waits until a speaker has delivered a message.
+ *   <li>Whichever side arrives first waits on a scheduler queue, with a
+ *       private slot for the word, and goes to sleep.
+ *   <li>The other side takes the partner the scheduler chooses from that
+ *       queue, completes the exchange through its slot, and makes that one
+ *       thread ready. It never blocks.
+ *   <li>So every word costs exactly one wakeup, and no thread is woken only to
+ *       find that its partner was taken by someone else.
  * </ul>
  */
 public class Communicator {
-    // The single lock that guards all shared state.
-    private Lock lock;
-    // Condition variable on which speakers wait.
-    private Condition speakerQueue;
-    // Condition variable on which listeners wait.
-    private Condition listenerQueue;
-    // Counters for waiting speakers and listeners.
-    private int waitingSpeakers;
-    private int waitingListeners;
-    // The message to be transferred.
-    private int word;
-    // Indicates if a message is available (delivered but not yet received).
-    private boolean messageReady;
-
     /**
      * Initialize the Communicator.
      */
     public Communicator() {
-        lock = new Lock();
-        speakerQueue = new Condition(lock);
-        listenerQueue = new Condition(lock);
-        waitingSpeakers = 0;
-        waitingListeners = 0;
-        messageReady = false;
     }
 
     /**
@@ -99,25 +34,22 @@ public class Communicator {
      * @param word the message to speak.
      */
     public void speak(int word) {
-        lock.acquire();
-        waitingSpeakers++;
-        // Wait until there is at least one listener waiting and no previous message is pending.
-        while (waitingListeners == 0 || messageReady) {
-            speakerQueue.sleep();
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread listener = waitingListeners.nextThread();
+        if (listener != null) {
+            // hand the word straight to the listener the scheduler picked
+            slots.get(listener).word = word;
+            listener.ready();
         }
-        // Now it is safe to deliver the message.
-        this.word = word;
-        messageReady = true;
-        // Signal one waiting listener that a message is available.
-        listenerQueue.wake();
-        // Wait until the listener has taken the message.
-        while (messageReady) {
-            speakerQueue.sleep();
+        else {
+            KThread thread = KThread.currentThread();
+            slots.put(thread, new Slot(word));
+            waitingSpeakers.waitForAccess(thread);
+            KThread.sleep();
         }
-        waitingSpeakers--;
-        // Wake up any additional speakers that might be waiting now that a listener has been paired.
-        speakerQueue.wake();
-        lock.release();
+
+        Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -127,28 +59,92 @@ public class Communicator {
      * @return the message received.
      */
     public int listen() {
-        lock.acquire();
-        waitingListeners++;
-        // Wake a waiting speaker in case one is available.
-        speakerQueue.wake();
-        // Wait until a message is available.
-        while (!messageReady) {
-            listenerQueue.sleep();
+        boolean intStatus = Machine.interrupt().disable();
+
+        int word;
+        KThread speaker = waitingSpeakers.nextThread();
+        if (speaker != null) {
+            // take the word of the speaker the scheduler picked
+            word = slots.remove(speaker).word;
+            speaker.ready();
+        }
+        else {
+            KThread thread = KThread.currentThread();
+            slots.put(thread, new Slot(0));
+            waitingListeners.waitForAccess(thread);
+            KThread.sleep();
+            word = slots.remove(thread).word;
         }
-        // Retrieve the message.
-        int result = word;
-        // Mark the message as consumed.
-        messageReady = false;
-        waitingListeners--;
-        // Wake the speaker that is waiting for acknowledgement.
-        speakerQueue.wake();
-        lock.release();
-        return result;
+
+        Machine.interrupt().restore(intStatus);
+        return word;
+    }
+
+    /**
+     * The word being exchanged with a thread waiting in <tt>speak()</tt> or
+     * <tt>listen()</tt>.
+     */
+    private static class Slot {
+        Slot(int word) {
+            this.word = word;
+        }
+
+        int word;
     }
+
+    // Speakers waiting for a listener.
+    private ThreadQueue waitingSpeakers =
+        ThreadedKernel.scheduler.newThreadQueue(false);
+    // Listeners waiting for a speaker.
+    private ThreadQueue waitingListeners =
+        ThreadedKernel.scheduler.newThreadQueue(false);
+    // The slot of each waiting thread, on either side.
+    private HashMap<KThread, Slot> slots = new HashMap<KThread, Slot>();
+
 /**
- * Self test for the Communicator class.
- * Tests basic functionality of the implementation.
+ * Stress test: fork <i>pairs</i> speakers and <i>pairs</i> listeners that each
+ * exchange one word over a single communicator, and report the number of
+ * context switches per word. Needs <tt>TCB.maxThreads</tt> of at least twice
+ * <i>pairs</i>.
+ *
+ * @param pairs the number of speakers, and of listeners.
  */
+public static void stressTest(int pairs) {
+    final Communicator com = new Communicator();
+    final Semaphore done = new Semaphore(0);
+    final int[] sum = new int[1];
+    KThread[] threads = new KThread[2 * pairs];
+
+    for (int i = 0; i < pairs; i++) {
+        final int word = i;
+        threads[2 * i] = new KThread(new Runnable() {
+            public void run() {
+                com.speak(word);
+                done.V();
+            }
+        }).setName("stress speaker");
+        threads[2 * i + 1] = new KThread(new Runnable() {
+            public void run() {
+                int word = com.listen();
+                sum[0] += word;
+                done.V();
+            }
+        }).setName("stress listener");
+    }
+
+    long switches = KThread.getContextSwitchCount();
+    for (int i = 0; i < threads.length; i++)
+        threads[i].fork();
+    for (int i = 0; i < threads.length; i++)
+        done.P();
+    switches = KThread.getContextSwitchCount() - switches;
+
+    Lib.assertTrue(sum[0] == pairs * (pairs - 1) / 2);
+    System.out.println("Communicator stress: " + pairs + " x " + pairs + ", "
+            + switches + " context switches, "
+            + ((double) switches / pairs) + " per word");
+}
+
 /**
  * Self test for the Communicator class.
  * Tests basic functionality of the implementation.
@@ -161,6 +157,7 @@ public static void selfTest() {
     testListenerFirst();
     testMultipleCommunication();
     testPingPong();
+    testListenerPriority();
     
     System.out.println("Communicator.selfTest() completed successfully!");
 }
@@ -439,4 +436,53 @@ private static void testPingPong() {
     
     System.out.println("Ping-pong test passed!");
 }
+
+/**
+ * Tests that a speaker hands its word to the listener the scheduler chooses:
+ * under a priority scheduler the one with the higher priority, even though it
+ * started listening last.
+ */
+private static void testListenerPriority() {
+    System.out.println("Testing listener priority...");
+    
+    final Communicator com = new Communicator();
+    final int[] received = new int[2];
+    final KThread[] listeners = new KThread[2];
+    
+    for (int i = 0; i < 2; i++) {
+        final int idx = i;
+        listeners[i] = new KThread(new Runnable() {
+            public void run() {
+                received[idx] = com.listen();
+            }
+        }).setName("Listener-" + i);
+        listeners[i].fork();
+    }
+    
+    // Let both listeners block, then raise the one that came last
+    while (com.slots.size() < 2) {
+        KThread.yield();
+    }
+    boolean intStatus = Machine.interrupt().disable();
+    ThreadedKernel.scheduler.setPriority(listeners[1], 2);
+    boolean raised = ThreadedKernel.scheduler.getEffectivePriority(listeners[1])
+            > ThreadedKernel.scheduler.getEffectivePriority(listeners[0]);
+    Machine.interrupt().restore(intStatus);
+    
+    com.speak(1);
+    com.speak(2);
+    
+    listeners[0].join();
+    listeners[1].join();
+    
+    // A lottery only makes the raised listener more likely to win
+    int favoured = raised ? 1 : 0;
+    if (!(ThreadedKernel.scheduler instanceof LotteryScheduler)
+            && received[favoured] != 1) {
+        System.out.println("ERROR: Listener-" + favoured + " should have received the first word");
+        Machine.halt();
+    }
+    
+    System.out.println("Listener priority test passed!");
+}
 }
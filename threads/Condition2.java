@@ -2,12 +2,17 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * Sleeping threads wait on a scheduler <tt>ThreadQueue</tt>, so the scheduler
+ * chooses which one <tt>wake()</tt> wakes. Each also has a record of its
+ * pending timeout, if any; a thread whose <tt>sleepFor()</tt> times out is
+ * taken off the queue with <tt>ThreadQueue.remove()</tt>.
  * 
  * @see nachos.threads.Condition
  */
@@ -29,20 +34,26 @@ public class Condition2 {
 	 * variable until another thread wakes it using <tt>wake()</tt>. The current
 	 * thread must hold the associated lock. The thread will automatically
 	 * reacquire the lock before <tt>sleep()</tt> returns.
+	 *
+	 * <p>
+	 * A woken thread is not made ready until the lock is handed to it, so it
+	 * is switched to once per wakeup, and already holds the lock when it runs.
 	 */
 	public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         
         boolean intStatus = Machine.interrupt().disable();
         
-        waitQueue.waitForAccess(KThread.currentThread());
+        Waiter waiter = new Waiter(KThread.currentThread());
+        enqueue(waiter);
         
         conditionLock.release();
         KThread.sleep();
         
         Machine.interrupt().restore(intStatus);
         
-        conditionLock.acquire();
+        // wake() queued us on the lock, and release() handed it to us
+        Lib.assertTrue(waiter.morphed && conditionLock.isHeldByCurrentThread());
 	}
 
 	/**
@@ -55,9 +66,8 @@ public class Condition2 {
         boolean intStatus = Machine.interrupt().disable();
         
         KThread thread = waitQueue.nextThread();
-        if (thread != null) {
-            thread.ready();
-        }
+        if (thread != null)
+            wake(waiters.remove(thread));
         
         Machine.interrupt().restore(intStatus);
 	}
@@ -71,11 +81,9 @@ public class Condition2 {
         
         boolean intStatus = Machine.interrupt().disable();
         
-        KThread thread = waitQueue.nextThread();
-        while (thread != null) {
-            thread.ready();
-            thread = waitQueue.nextThread();
-        }
+        KThread thread;
+        while ((thread = waitQueue.nextThread()) != null)
+            wake(waiters.remove(thread));
         
         Machine.interrupt().restore(intStatus);
 	}
@@ -87,11 +95,80 @@ public class Condition2 {
 	 * <i>timeout</i> elapses.  The current thread must hold the
 	 * associated lock.  The thread will automatically reacquire
 	 * the lock before <tt>sleep()</tt> returns.
+	 *
+	 * <p>
+	 * The timeout is an <tt>Alarm</tt> wakeup that is cancelled if
+	 * <tt>wake()</tt> gets here first, so a woken thread never sees a
+	 * late timeout.
 	 */
-    public void sleepFor(long timeout) { // Not needed according to TA
+    public void sleepFor(long timeout) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (timeout <= 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		final Waiter waiter = new Waiter(KThread.currentThread());
+		enqueue(waiter);
+		waiter.timeout = ThreadedKernel.alarm.waitUntil(timeout,
+				new Runnable() {
+					public void run() {
+						// timed out before anyone woke us
+						waitQueue.remove(waiter.thread);
+						waiters.remove(waiter.thread);
+						waiter.thread.ready();
+					}
+				});
+
+		conditionLock.release();
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+
+		// a timed-out waiter was made ready directly and must take the lock
+		if (!waiter.morphed)
+			conditionLock.acquire();
+	}
+
+	/**
+	 * Cancel the timeout of <tt>waiter</tt>, which has been taken off the wait
+	 * queue, and move its thread onto the lock's wait queue. The waker holds
+	 * the lock, so readying the thread now would only make it block again in
+	 * <tt>acquire()</tt>; instead it is readied once, by the
+	 * <tt>release()</tt> that hands it the lock.
+	 */
+	private void wake(Waiter waiter) {
+		if (waiter.timeout != null)
+			waiter.timeout.cancel();
+
+		waiter.morphed = true;
+		conditionLock.requeue(waiter.thread);
+	}
+
+	private void enqueue(Waiter waiter) {
+		waiters.put(waiter.thread, waiter);
+		waitQueue.waitForAccess(waiter.thread);
+	}
+
+	/**
+	 * A thread sleeping on this condition.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread) {
+			this.thread = thread;
+		}
+
+		KThread thread;
+		Alarm.Wakeup timeout;
+
+		/** Set once the waiter has been moved to the lock's wait queue. */
+		boolean morphed = false;
 	}
 
     private Lock conditionLock;
 	private ThreadQueue waitQueue;
+
+	/** The record of each thread in <tt>waitQueue</tt>. */
+	private HashMap<KThread, Waiter> waiters = new HashMap<KThread, Waiter>();
 }
@@ -114,7 +114,190 @@ public class Condition2Test {
         System.out.println("Test complete");
     }
 
+
+    /**
+     * Tests sleepFor(): one waiter times out on its own, the other is woken
+     * early and must not be woken again when its timeout would have expired.
+     */
+    public static void testSleepFor() {
+        System.out.println("=== Condition2Test: testSleepFor ===");
+        
+        final Lock lock = new Lock();
+        final Condition2 condition = new Condition2(lock);
+        final Condition2 never = new Condition2(lock);
+        
+        KThread timer = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                long t0 = Machine.timer().getTime();
+                condition.sleepFor(1000);
+                long waited = Machine.timer().getTime() - t0;
+                Lib.assertTrue(waited >= 1000);
+                System.out.println("Timed sleeper: timed out after " + waited + " ticks");
+                lock.release();
+            }
+        });
+        timer.setName("timed sleeper");
+        
+        KThread woken = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                long t0 = Machine.timer().getTime();
+                condition.sleepFor(3000);
+                long waited = Machine.timer().getTime() - t0;
+                Lib.assertTrue(waited < 3000);
+                System.out.println("Woken sleeper: woken after " + waited + " ticks");
+                
+                // a stale timeout would make this return early
+                t0 = Machine.timer().getTime();
+                never.sleepFor(6000);
+                waited = Machine.timer().getTime() - t0;
+                Lib.assertTrue(waited >= 6000);
+                lock.release();
+            }
+        });
+        woken.setName("woken sleeper");
+        
+        timer.fork();
+        woken.fork();
+        
+        ThreadedKernel.alarm.waitUntil(2000);
+        lock.acquire();
+        condition.wake();
+        lock.release();
+        
+        woken.join();
+        System.out.println("Test complete");
+    }
     
+    /**
+     * Tests that woken threads wait on the lock rather than running: the
+     * waker yields while still holding the lock, and each sleeper must be
+     * switched to only once, when the lock is handed to it.
+     */
+    public static void testWakeAllMorphing() {
+        System.out.println("=== Condition2Test: testWakeAllMorphing ===");
+
+        final Lock lock = new Lock();
+        final Condition2 condition = new Condition2(lock);
+        final Semaphore done = new Semaphore(0);
+        final int threadCount = 20;
+        final int[] asleep = new int[1];
+        final int[] finished = new int[1];
+
+        for (int i = 0; i < threadCount; i++) {
+            new KThread(new Runnable() {
+                public void run() {
+                    lock.acquire();
+                    asleep[0]++;
+                    condition.sleep();
+                    Lib.assertTrue(lock.isHeldByCurrentThread());
+                    if (++finished[0] == threadCount)
+                        done.V();
+                    lock.release();
+                }
+            }).setName("morph sleeper").fork();
+        }
+
+        while (asleep[0] < threadCount)
+            KThread.yield();
+
+        lock.acquire();
+        long before = KThread.getContextSwitchCount();
+        condition.wakeAll();
+        KThread.yield();
+        lock.release();
+        done.P();
+        long switches = KThread.getContextSwitchCount() - before;
+
+        System.out.println("wakeAll of " + threadCount + " sleepers: "
+                + switches + " context switches");
+        Lib.assertTrue(switches <= threadCount + 2);
+        System.out.println("Test complete");
+    }
+
+    /**
+     * Tests that wake() leaves the choice to the scheduler: under a priority
+     * scheduler the sleeper with the highest effective priority is woken,
+     * and the one that has slept longest among equals. Priorities are raised
+     * in reverse sleep order once everyone is asleep, so a plain FIFO wake
+     * fails. Under a round-robin scheduler all priorities are equal, so
+     * sleepers must be woken in the order they went to sleep.
+     */
+    public static void testWakePriority() {
+        System.out.println("=== Condition2Test: testWakePriority ===");
+
+        final Lock lock = new Lock();
+        final Condition2 condition = new Condition2(lock);
+        final Semaphore done = new Semaphore(0);
+        final int threadCount = 3;
+        final KThread[] threads = new KThread[threadCount];
+        final int[] sleepOrder = new int[threadCount];
+        final int[] wakeOrder = new int[threadCount];
+        final int[] asleep = new int[1];
+        final int[] woken = new int[1];
+
+        for (int i = 0; i < threadCount; i++) {
+            final int id = i;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    lock.acquire();
+                    sleepOrder[asleep[0]++] = id;
+                    condition.sleep();
+                    wakeOrder[woken[0]++] = id;
+                    lock.release();
+                    done.V();
+                }
+            }).setName("priority sleeper");
+            threads[i].fork();
+        }
+
+        while (asleep[0] < threadCount)
+            KThread.yield();
+
+        // expected: sleep order, stably sorted by effective priority
+        int[] expected = new int[threadCount];
+        int[] effective = new int[threadCount];
+        boolean intStatus = Machine.interrupt().disable();
+        for (int j = 0; j < threadCount; j++)
+            ThreadedKernel.scheduler.setPriority(threads[sleepOrder[j]],
+                    j + 1);
+        for (int i = 0; i < threadCount; i++)
+            effective[i] = ThreadedKernel.scheduler
+                    .getEffectivePriority(threads[i]);
+        Machine.interrupt().restore(intStatus);
+
+        boolean[] taken = new boolean[threadCount];
+        for (int k = 0; k < threadCount; k++) {
+            int best = -1;
+            for (int j = 0; j < threadCount; j++) {
+                int id = sleepOrder[j];
+                if (!taken[id]
+                        && (best == -1 || effective[id] > effective[best]))
+                    best = id;
+            }
+            taken[best] = true;
+            expected[k] = best;
+        }
+
+        for (int k = 0; k < threadCount; k++) {
+            lock.acquire();
+            condition.wake();
+            lock.release();
+            done.P();
+        }
+
+        // a lottery draws its winners, so then only check each woke once
+        boolean lottery = ThreadedKernel.scheduler instanceof LotteryScheduler;
+        boolean[] seen = new boolean[threadCount];
+        for (int k = 0; k < threadCount; k++) {
+            Lib.assertTrue(!seen[wakeOrder[k]]);
+            seen[wakeOrder[k]] = true;
+            Lib.assertTrue(lottery || wakeOrder[k] == expected[k]);
+        }
+        System.out.println("Test complete");
+    }
+
     /**
      * Entry point for the tests.
      */
@@ -122,6 +305,9 @@ public class Condition2Test {
         System.out.println("Starting Condition2 tests");
         testSleepWake();
         testWakeAll();
+        testSleepFor();
+        testWakeAllMorphing();
+        testWakePriority();
         System.out.println("All Condition2 tests completed");
     }
 }
@@ -149,8 +149,8 @@ public class KThread {
 		Lib.assertTrue(status == statusNew);
 		Lib.assertTrue(target != null);
 
-		Lib.debug(dbgThread, "Forking thread: " + toString() + " Runnable: "
-				+ target);
+		Lib.debug(dbgThread, () -> "Forking thread: " + toString()
+				+ " Runnable: " + target);
 
 		boolean intStatus = Machine.interrupt().disable();
 
@@ -172,7 +172,7 @@ public class KThread {
 	}
 
 	private void begin() {
-		Lib.debug(dbgThread, "Beginning thread: " + toString());
+		Lib.debug(dbgThread, () -> "Beginning thread: " + toString());
 
 		Lib.assertTrue(this == currentThread);
 
@@ -192,7 +192,7 @@ public class KThread {
 	 * delete this thread.
 	 */
 public static void finish() {
-    Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+    Lib.debug(dbgThread, () -> "Finishing thread: " + currentThread.toString());
     
     Machine.interrupt().disable();
     
@@ -233,7 +233,8 @@ public static void finish() {
 	 * called with interrupts disabled.
 	 */
 	public static void yield() {
-		Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+		Lib.debug(dbgThread,
+				() -> "Yielding thread: " + currentThread.toString());
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
@@ -258,7 +259,8 @@ public static void finish() {
 	 * scheduled this thread to be destroyed by the next thread to run.
 	 */
 	public static void sleep() {
-		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+		Lib.debug(dbgThread,
+				() -> "Sleeping thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -273,14 +275,16 @@ public static void finish() {
 	 * ready queue.
 	 */
 	public void ready() {
-		Lib.debug(dbgThread, "Ready thread: " + toString());
+		Lib.debug(dbgThread, () -> "Ready thread: " + toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -291,7 +295,7 @@ public static void finish() {
 	 * is not guaranteed to return. This thread must not be the current thread.
 	 */
     public void join() {
-        Lib.debug(dbgThread, "Joining to thread: " + toString());
+        Lib.debug(dbgThread, () -> "Joining to thread: " + toString());
         
         Lib.assertTrue(this != currentThread);
         Lib.assertTrue(this.hasBeenJoined != true);
@@ -323,10 +327,30 @@ public static void finish() {
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		final boolean fastForward = Config.getBoolean(
+				"KThread.idleFastForward", true);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					// if every other thread is blocked, nothing can happen
+					// before the next interrupt: jump the clock straight to
+					// it (and, with a tickless timer, past the periodic ticks
+					// as well). An interrupt handler that ran while this
+					// thread yielded may have readied a thread, though, and
+					// that thread must not be delayed.
+					if (fastForward || Machine.timer().isTickless()) {
+						boolean intStatus = Machine.interrupt().disable();
+						if (numReady == 0) {
+							Machine.timer().idle();
+							Machine.interrupt().idle();
+							Machine.timer().resume();
+						}
+						Machine.interrupt().restore(intStatus);
+					}
+
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -344,6 +368,8 @@ public static void finish() {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
 
 		nextThread.run();
 	}
@@ -374,8 +400,11 @@ public static void finish() {
 
 		currentThread.saveState();
 
-		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-				+ " to: " + toString());
+		if (this != currentThread)
+			numContextSwitches++;
+
+		Lib.debug(dbgThread, () -> "Switching from: "
+				+ currentThread.toString() + " to: " + toString());
 
 		currentThread = this;
 
@@ -389,7 +418,8 @@ public static void finish() {
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
 	 */
 	protected void restoreState() {
-		Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+		Lib.debug(dbgThread,
+				() -> "Running thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
@@ -431,6 +461,45 @@ public static void finish() {
 		private int which;
 	}
 
+	/**
+	 * Return the number of context switches between different threads since
+	 * Nachos started. A thread that yields and is immediately rescheduled is
+	 * not counted.
+	 * 
+	 * @return the number of context switches so far.
+	 */
+	public static long getContextSwitchCount() {
+		return numContextSwitches;
+	}
+
+	/**
+	 * Measure context-switch throughput by ping-ponging <tt>yield()</tt>
+	 * between the current thread and one forked thread. Each yield hands the
+	 * CPU to the other thread, so every iteration is one TCB context switch.
+	 * <tt>ThreadedKernel.selfTest()</tt> runs it when
+	 * <tt>KThread.yieldBenchmark</tt> is set to the number of switches.
+	 */
+	public static void yieldBenchmark(final int switches) {
+		Runnable pinger = new Runnable() {
+			public void run() {
+				for (int i = 0; i < switches / 2; i++)
+					KThread.yield();
+			}
+		};
+
+		KThread partner = new KThread(pinger).setName("yield benchmark");
+
+		long start = System.nanoTime();
+		partner.fork();
+		pinger.run();
+		partner.join();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("KThread yield benchmark: " + switches
+				+ " switches in " + (elapsed / 1000000) + " ms ("
+				+ (long) (switches * 1e9 / elapsed) + " switches/sec)");
+	}
+
 	/**
 	 * Tests whether this module is working.
 	 */
@@ -674,8 +743,14 @@ public static void finish() {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
+	/** The number of times the CPU has been handed to a different thread. */
+	private static long numContextSwitches = 0;
+
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads in <tt>readyQueue</tt>. */
+	private static int numReady = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
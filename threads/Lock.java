@@ -28,19 +28,43 @@ public class Lock {
 	/**
 	 * Atomically acquire this lock. The current thread must not already hold
 	 * this lock.
+	 * 
+	 * <p>
+	 * If the lock is free and nobody is waiting, it is taken without touching
+	 * the interrupt state. Simulated time only advances, and so a context
+	 * switch can only happen, when interrupts are re-enabled or a user
+	 * instruction runs, so the test and the update cannot be separated.
 	 */
 	public void acquire() {
 		Lib.assertTrue(!isHeldByCurrentThread());
 
-		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
+		if (lockHolder == null && numWaiting == 0) {
+			lockHolder = thread;
+			uncontendedAcquires++;
+			return;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
 		if (lockHolder != null) {
+			contendedAcquires++;
+
+			// tell the scheduler who holds the lock, so it can donate
+			if (!holderRegistered) {
+				waitQueue.acquire(lockHolder);
+				holderRegistered = true;
+			}
+
+			numWaiting++;
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
 		}
 		else {
+			uncontendedAcquires++;
 			waitQueue.acquire(thread);
+			holderRegistered = true;
 			lockHolder = thread;
 		}
 
@@ -50,19 +74,55 @@ public class Lock {
 	}
 
 	/**
-	 * Atomically release this lock, allowing other threads to acquire it.
+	 * Atomically release this lock, allowing other threads to acquire it. If
+	 * nobody is waiting and the scheduler was never told about the holder,
+	 * the lock is freed without touching the interrupt state.
 	 */
 	public void release() {
 		Lib.assertTrue(isHeldByCurrentThread());
 
+		if (numWaiting == 0 && !holderRegistered) {
+			lockHolder = null;
+			return;
+		}
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
+		if ((lockHolder = waitQueue.nextThread()) != null) {
+			numWaiting--;
 			lockHolder.ready();
+		}
+		else {
+			holderRegistered = false;
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Put <tt>thread</tt>, which is asleep, on this lock's wait queue as if it
+	 * had called <tt>acquire()</tt> and blocked. It is made ready by the
+	 * <tt>release()</tt> that hands it the lock. Used by <tt>Condition2</tt>
+	 * to move woken waiters straight to the lock. The current thread must
+	 * hold this lock, and interrupts must be disabled.
+	 *
+	 * @param thread the sleeping thread that will wait for this lock.
+	 */
+	void requeue(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(isHeldByCurrentThread());
+
+		contendedAcquires++;
+
+		if (!holderRegistered) {
+			waitQueue.acquire(lockHolder);
+			holderRegistered = true;
+		}
+
+		numWaiting++;
+		waitQueue.waitForAccess(thread);
+	}
+
 	/**
 	 * Test if the current thread holds this lock.
 	 * 
@@ -72,8 +132,40 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the number of acquisitions that found this lock free.
+	 * 
+	 * @return the number of uncontended acquisitions.
+	 */
+	public long getUncontendedAcquires() {
+		return uncontendedAcquires;
+	}
+
+	/**
+	 * Return the number of acquisitions that had to wait for another holder.
+	 * 
+	 * @return the number of contended acquisitions.
+	 */
+	public long getContendedAcquires() {
+		return contendedAcquires;
+	}
+
 	private KThread lockHolder = null;
 
+	/** The number of threads sleeping in <tt>waitQueue</tt>. */
+	private int numWaiting = 0;
+
+	/**
+	 * <tt>true</tt> if <tt>waitQueue</tt> knows who holds the lock. The fast
+	 * path skips <tt>waitQueue.acquire()</tt>, so the first contender
+	 * registers the holder on its behalf before waiting.
+	 */
+	private boolean holderRegistered = false;
+
+	private long uncontendedAcquires = 0;
+
+	private long contendedAcquires = 0;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
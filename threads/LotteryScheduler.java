@@ -41,7 +41,275 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum
+				&& priority <= ticketsMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The minimum number of tickets a thread can hold.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The maximum number of tickets a thread can hold. Effective ticket counts
+	 * saturate at this value as well.
+	 */
+	public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Tests ticket transfer and the lottery draw on a private scheduler
+	 * instance, using threads that are never forked.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler s = new LotteryScheduler();
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread holder = new KThread().setName("holder");
+		s.setPriority(a, 10);
+		s.setPriority(b, ticketsMaximum);
+		s.setPriority(holder, 5);
+
+		// tickets of all waiters add up, and saturate
+		ThreadQueue lock = s.newThreadQueue(true);
+		lock.acquire(holder);
+		lock.waitForAccess(a);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 15);
+		lock.waitForAccess(b);
+		Lib.assertTrue(s.getEffectivePriority(holder) == ticketsMaximum);
+		s.setPriority(b, 20);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 35);
+
+		// a waiter that gives up takes its tickets with it
+		lock.remove(a);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 25);
+		lock.waitForAccess(a);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 35);
+
+		// the winner takes over the lock and the remaining donation
+		KThread winner = lock.nextThread();
+		KThread loser = (winner == a) ? b : a;
+		Lib.assertTrue(winner == a || winner == b);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 5);
+		Lib.assertTrue(s.getEffectivePriority(winner) == s
+				.getPriority(winner) + s.getPriority(loser));
+		Lib.assertTrue(lock.nextThread() == loser);
+		Lib.assertTrue(lock.nextThread() == null);
+
+		// draws follow the ticket ratio: 1 vs 3 tickets over many rounds
+		ThreadQueue ready = s.newThreadQueue(false);
+		s.setPriority(a, 1);
+		s.setPriority(b, 3);
+		int bWins = 0;
+		for (int i = 0; i < 4000; i++) {
+			ready.waitForAccess(a);
+			ready.waitForAccess(b);
+			if (ready.nextThread() == b)
+				bWins++;
+			ready.nextThread();
+		}
+		Lib.assertTrue(bWins > 2800 && bWins < 3200);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiters.
+	 *
+	 * <p>
+	 * Each waiter occupies a slot in a Fenwick tree of ticket counts, so adding
+	 * or removing a waiter, changing its tickets, and drawing the winner all
+	 * take <i>O(log n)</i> time. Slots freed by departing waiters are reused
+	 * before the tree grows.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long winningTicket = Math.min((long) (Lib.random() * totalTickets),
+					totalTickets - 1);
+
+			// descend the tree to the slot whose ticket range covers the draw
+			int index = 0;
+			for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+				int next = index + step;
+				if (next < tree.length && tree[next] <= winningTicket) {
+					index = next;
+					winningTicket -= tree[next];
+				}
+			}
+
+			return holders[index];
+		}
+
+		protected void addWaiter(ThreadState state) {
+			LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+			if (freeCount == 0)
+				grow();
+
+			int slot = freeSlots[--freeCount];
+			lotteryState.slot = slot;
+			holders[slot] = lotteryState;
+			tickets[slot] = state.effectivePriority;
+			addToTree(slot + 1, state.effectivePriority);
+			totalTickets += state.effectivePriority;
+			size++;
+		}
+
+		protected void removeWaiter(ThreadState state) {
+			int slot = ((LotteryThreadState) state).slot;
+			Lib.assertTrue(holders[slot] == state);
+
+			addToTree(slot + 1, -tickets[slot]);
+			totalTickets -= tickets[slot];
+			holders[slot] = null;
+			tickets[slot] = 0;
+			freeSlots[freeCount++] = slot;
+			size--;
+		}
+
+		protected int getDonatedPriority() {
+			if (!transferPriority)
+				return 0;
+
+			return (int) Math.min(totalTickets, ticketsMaximum);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < holders.length; i++) {
+				if (holders[i] != null)
+					System.out.print(holders[i].thread + "(" + tickets[i]
+							+ ") ");
+			}
+		}
+
+		private void addToTree(int i, long delta) {
+			for (; i < tree.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int oldCapacity = holders.length;
+			int capacity = Math.max(2 * oldCapacity, initialCapacity);
+
+			LotteryThreadState[] newHolders = new LotteryThreadState[capacity];
+			System.arraycopy(holders, 0, newHolders, 0, oldCapacity);
+			holders = newHolders;
+
+			long[] newTickets = new long[capacity];
+			System.arraycopy(tickets, 0, newTickets, 0, oldCapacity);
+			tickets = newTickets;
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += tickets[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+
+			freeSlots = new int[capacity];
+			freeCount = 0;
+			for (int slot = capacity - 1; slot >= oldCapacity; slot--)
+				freeSlots[freeCount++] = slot;
+		}
+
+		private LotteryThreadState[] holders = new LotteryThreadState[0];
+
+		private long[] tickets = new long[0];
+
+		/** 1-based Fenwick tree over <tt>tickets</tt>. */
+		private long[] tree = new long[1];
+
+		private int[] freeSlots = new int[0];
+
+		private int freeCount = 0;
+
+		private int size = 0;
+
+		private long totalTickets = 0;
+	}
+
+	private static final int initialCapacity = 8;
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler. The
+	 * effective priority is the thread's own tickets plus every ticket donated
+	 * through the queues it owns.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		protected int computeEffectivePriority() {
+			long total = priority;
+			for (Iterator<PriorityQueue> i = resources.iterator(); i.hasNext();)
+				total += i.next().getDonatedPriority();
+
+			return (int) Math.min(total, ticketsMaximum);
+		}
+
+		/** This thread's slot in the queue it is waiting on. */
+		private int slot;
 	}
 }
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Comparator;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -97,6 +98,79 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Tests priority donation on a private scheduler instance, using threads
+	 * that are never forked.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler s = new PriorityScheduler();
+		KThread low = new KThread().setName("low");
+		KThread mid = new KThread().setName("mid");
+		KThread high = new KThread().setName("high");
+		KThread holder = new KThread().setName("holder");
+		s.setPriority(low, 0);
+		s.setPriority(mid, 3);
+		s.setPriority(high, 7);
+		s.setPriority(holder, 2);
+
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		ThreadQueue ready = s.newThreadQueue(false);
+
+		// low holds lock1 and waits for lock2, which holder owns
+		lock1.acquire(low);
+		lock2.acquire(holder);
+		lock2.waitForAccess(low);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 2);
+
+		// high blocks on lock1: donation flows low -> holder
+		lock1.waitForAccess(high);
+		Lib.assertTrue(s.getEffectivePriority(low) == 7);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 7);
+
+		// non-transferring queues order by effective priority, FIFO on ties
+		KThread first = new KThread().setName("first");
+		KThread second = new KThread().setName("second");
+		ready.waitForAccess(first);
+		ready.waitForAccess(mid);
+		ready.waitForAccess(second);
+		ready.waitForAccess(holder);
+		Lib.assertTrue(ready.nextThread() == holder);
+		Lib.assertTrue(ready.nextThread() == mid);
+		Lib.assertTrue(ready.nextThread() == first);
+		Lib.assertTrue(ready.nextThread() == second);
+
+		// raising the base priority above the donation takes effect
+		s.setPriority(holder, 7);
+		s.setPriority(high, 5);
+		Lib.assertTrue(s.getEffectivePriority(low) == 5);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 7);
+		s.setPriority(holder, 2);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 5);
+
+		// removing a waiter, as a timed-out wait does, withdraws its donation
+		lock1.remove(high);
+		Lib.assertTrue(s.getEffectivePriority(low) == 0);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 2);
+		lock1.waitForAccess(high);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 5);
+
+		// releasing lock2 hands it to low and withdraws the donation
+		Lib.assertTrue(lock2.nextThread() == low);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 2);
+		Lib.assertTrue(s.getEffectivePriority(low) == 5);
+
+		Lib.assertTrue(lock1.nextThread() == high);
+		Lib.assertTrue(s.getEffectivePriority(low) == 0);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(lock2.nextThread() == null);
+		Lib.assertTrue(s.getEffectivePriority(low) == 0);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -127,6 +201,15 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in a <tt>TreeSet</tt> ordered by effective
+	 * priority (highest first) and then by the order in which they started
+	 * waiting, so selecting, adding and removing a thread are all
+	 * <i>O(log n)</i>. Because the set is sorted on the cached effective
+	 * priority, a thread must be removed before that value changes and
+	 * re-inserted afterwards; <tt>ThreadState.updateEffectivePriority()</tt>
+	 * takes care of this.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +228,31 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			removeWaiter(next);
+			next.waitingOn = null;
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public void remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == this);
+
+			removeWaiter(state);
+			state.waitingOn = null;
+
+			if (owner != null)
+				owner.updateEffectivePriority();
 		}
 
 		/**
@@ -156,13 +262,72 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (waitQueue.isEmpty())
+				return null;
+
+			return waitQueue.first();
+		}
+
+		/**
+		 * Add a thread to the set of waiters, keyed on its current effective
+		 * priority.
+		 */
+		protected void addWaiter(ThreadState state) {
+			waitQueue.add(state);
+		}
+
+		/**
+		 * Remove a thread from the set of waiters. Must be called before the
+		 * thread's effective priority changes.
+		 */
+		protected void removeWaiter(ThreadState state) {
+			waitQueue.remove(state);
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of any waiting thread, or <tt>priorityMinimum</tt>
+		 * if the queue does not transfer priority or nobody is waiting.
+		 * 
+		 * @return the priority donated by this queue.
+		 */
+		protected int getDonatedPriority() {
+			if (!transferPriority || waitQueue.isEmpty())
+				return priorityMinimum;
+
+			return waitQueue.first().effectivePriority;
+		}
+
+		/**
+		 * Make <tt>owner</tt> the thread holding the resource guarded by this
+		 * queue, withdrawing the donation from the previous owner. Does
+		 * nothing for queues that do not transfer priority.
+		 */
+		private void setOwner(ThreadState owner) {
+			if (!transferPriority || this.owner == owner)
+				return;
+
+			if (this.owner != null) {
+				this.owner.resources.remove(this);
+				this.owner.updateEffectivePriority();
+			}
+
+			this.owner = owner;
+
+			if (owner != null) {
+				owner.resources.add(this);
+				owner.updateEffectivePriority();
+			}
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + "(" + state.effectivePriority
+						+ ") ");
+			}
 		}
 
 		/**
@@ -170,6 +335,24 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers priority.
+		 */
+		protected ThreadState owner = null;
+
+		/** Waiting threads, highest effective priority first. */
+		protected TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.effectivePriority != b.effectivePriority)
+							return b.effectivePriority - a.effectivePriority;
+						return Long.compare(a.waitSequence, b.waitSequence);
+					}
+				});
+
+		/** Stamp handed to the next thread that starts waiting. */
+		private long nextSequence = 0;
 	}
 
 	/**
@@ -177,6 +360,13 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached. It is recomputed from the thread's
+	 * own priority and the donations of the queues it owns whenever one of
+	 * those inputs changes, and a change is pushed to the owner of the queue
+	 * the thread is waiting on. Propagation stops at the first thread whose
+	 * effective priority does not change.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +397,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +411,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +427,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitSequence = waitQueue.nextSequence++;
+			waitQueue.addWaiter(this);
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +448,49 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			// no check on waitingOn: Lock registers a holder lazily, when the
+			// first contender arrives, by which time it may be blocked elsewhere
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Recompute the effective priority from the base priority and the
+		 * donations of every owned queue. If it changed, reposition this
+		 * thread in the queue it is waiting on and pass the change on to that
+		 * queue's owner.
+		 */
+		protected void updateEffectivePriority() {
+			int newPriority = computeEffectivePriority();
+
+			if (newPriority == effectivePriority)
+				return;
+
+			PriorityQueue queue = waitingOn;
+			if (queue != null)
+				queue.removeWaiter(this);
+
+			effectivePriority = newPriority;
+
+			if (queue != null) {
+				queue.addWaiter(this);
+
+				if (queue.owner != null)
+					queue.owner.updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Combine the base priority with the donations of the owned queues.
+		 * A priority scheduler takes the maximum.
+		 * 
+		 * @return the effective priority the thread should have now.
+		 */
+		protected int computeEffectivePriority() {
+			int newPriority = priority;
+			for (Iterator<PriorityQueue> i = resources.iterator(); i.hasNext();)
+				newPriority = Math.max(newPriority, i.next().getDonatedPriority());
+
+			return newPriority;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +498,17 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The queues this thread owns that transfer priority to it. */
+		protected HashSet<PriorityQueue> resources = new HashSet<PriorityQueue>();
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected PriorityQueue waitingOn = null;
+
+		/** Orders this thread among equal priorities in <tt>waitingOn</tt>. */
+		protected long waitSequence;
 	}
 }
@@ -0,0 +1,339 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers hold it at once, or a
+ * single writer. It is writer-preferring: once a writer is waiting, new
+ * readers wait behind it, so a steady stream of readers cannot starve writers.
+ * When a writer releases the lock, every reader that queued up behind it is
+ * admitted together before the next writer, so writers cannot starve readers
+ * either.
+ *
+ * <p>
+ * Waiting threads sleep on scheduler queues that transfer priority, and donate
+ * to the thread holding the lock: the writer or, while readers hold it, the
+ * oldest of them. As with <tt>Lock</tt>, the holder is only registered with a
+ * queue once somebody waits on it, so an uncontended lock never touches the
+ * queues. When the oldest reader leaves the donation moves on to the next
+ * oldest, but a scheduler queue has only one owner, so only one reader is
+ * boosted at a time.
+ *
+ * <p>
+ * Only the thread that acquired the lock may release it, and a thread must not
+ * acquire it again while holding it.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a writer holds it or is
+	 * waiting for it.
+	 */
+	public void acquireRead() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer == null && numWaitingWriters == 0) {
+			readers.add(thread);
+		}
+		else {
+			// releaseWrite() adds us to readers before waking us
+			numWaitingReaders++;
+			registerHolder();
+			readQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock, which the current thread holds for reading.
+	 */
+	public void releaseRead() {
+		KThread thread = KThread.currentThread();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(readers.remove(thread));
+
+		if (!readers.isEmpty())
+			registerHolder(); // the oldest reader may have left
+		else if (numWaitingWriters > 0)
+			admitWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no reader or writer holds
+	 * it.
+	 */
+	public void acquireWrite() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer == null && readers.isEmpty()) {
+			writer = thread;
+		}
+		else {
+			// releaseRead() or releaseWrite() makes us the writer first
+			numWaitingWriters++;
+			registerHolder();
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock, which the current thread holds for writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(writer == KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (numWaitingReaders > 0) {
+			KThread reader;
+			while ((reader = readQueue.nextThread()) != null) {
+				readers.add(reader);
+				reader.ready();
+			}
+			numWaitingReaders = 0;
+			readOwner = null;
+
+			registerHolder();
+		}
+		else if (numWaitingWriters > 0) {
+			admitWriter();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return <tt>true</tt> if the current thread is the writer.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writer == KThread.currentThread();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for reading.
+	 *
+	 * @return <tt>true</tt> if the current thread is one of the readers.
+	 */
+	public boolean isReadHeldByCurrentThread() {
+		return readers.contains(KThread.currentThread());
+	}
+
+	/**
+	 * Hand the lock to the writer that <tt>writeQueue</tt> chooses, which
+	 * also makes it the owner of <tt>writeQueue</tt>.
+	 */
+	private void admitWriter() {
+		writer = writeQueue.nextThread();
+		writeOwner = writer;
+		numWaitingWriters--;
+
+		registerHolder();
+
+		writer.ready();
+	}
+
+	/**
+	 * Make the thread holding the lock, the writer or the oldest reader, the
+	 * owner of each queue that has waiters, so that they donate to it. The
+	 * lock must be held.
+	 */
+	private void registerHolder() {
+		KThread holder = (writer != null) ? writer : readers.iterator().next();
+
+		if (numWaitingReaders > 0 && readOwner != holder) {
+			readQueue.acquire(holder);
+			readOwner = holder;
+		}
+
+		if (numWaitingWriters > 0 && writeOwner != holder) {
+			writeQueue.acquire(holder);
+			writeOwner = holder;
+		}
+	}
+
+	/**
+	 * Test that this module is working: readers overlap, writers are
+	 * exclusive, and a waiting writer holds back new readers.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final int[] active = new int[3]; // readers, writers, max readers
+		final Semaphore done = new Semaphore(0);
+		final int numReaders = 4;
+		final long holdTime = 1000;
+
+		Runnable reader = new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				Lib.assertTrue(active[1] == 0);
+				active[0]++;
+				active[2] = Math.max(active[2], active[0]);
+				ThreadedKernel.alarm.waitUntil(holdTime);
+				active[0]--;
+				lock.releaseRead();
+				done.V();
+			}
+		};
+
+		Runnable writer = new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				Lib.assertTrue(active[0] == 0 && active[1] == 0);
+				active[1]++;
+				ThreadedKernel.alarm.waitUntil(holdTime);
+				active[1]--;
+				lock.releaseWrite();
+				done.V();
+			}
+		};
+
+		long start = Machine.timer().getTime();
+		for (int i = 0; i < numReaders; i++)
+			new KThread(reader).setName("rw reader").fork();
+		for (int i = 0; i < numReaders; i++)
+			done.P();
+		long elapsed = Machine.timer().getTime() - start;
+
+		// all readers held the lock at once, so it took about one hold time
+		Lib.assertTrue(active[2] == numReaders);
+		Lib.assertTrue(elapsed < 2 * holdTime);
+
+		// readers, then a writer, then readers that must wait for it
+		new KThread(reader).setName("rw reader").fork();
+		new KThread(reader).setName("rw reader").fork();
+		KThread.yield();
+		new KThread(writer).setName("rw writer").fork();
+		new KThread(writer).setName("rw writer").fork();
+		KThread.yield();
+		active[2] = 0;
+		new KThread(reader).setName("rw reader").fork();
+		new KThread(reader).setName("rw reader").fork();
+		for (int i = 0; i < 6; i++)
+			done.P();
+
+		donationTest();
+	}
+
+	/**
+	 * Test that waiting readers and writers donate to a writer that got the
+	 * lock uncontended, and that a waiting writer donates to the readers
+	 * holding the lock, also after they were admitted by
+	 * <tt>releaseWrite()</tt> and after the oldest of them has left.
+	 */
+	private static void donationTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final Semaphore hold = new Semaphore(0);
+		final Semaphore done = new Semaphore(0);
+
+		Runnable reader = new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				hold.P();
+				lock.releaseRead();
+				done.V();
+			}
+		};
+
+		lock.acquireWrite();
+		KThread first = new KThread(reader).setName("rw reader");
+		first.fork();
+		new KThread(reader).setName("rw reader").fork();
+		while (lock.numWaitingReaders < 2)
+			KThread.yield();
+
+		// the writer got the lock uncontended, and still inherits donations
+		setPriority(first, 6);
+		checkDonation(KThread.currentThread(), first);
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				lock.releaseWrite();
+				done.V();
+			}
+		}).setName("rw writer");
+		// above our inherited priority, or yielding would never let it run
+		setPriority(writer, 7);
+		writer.fork();
+		while (lock.numWaitingWriters < 1)
+			KThread.yield();
+
+		checkDonation(KThread.currentThread(), writer);
+
+		// both readers are admitted, and the oldest inherits the donation
+		lock.releaseWrite();
+		Lib.assertTrue(lock.readers.size() == 2);
+		checkDonation(lock.readers.iterator().next(), writer);
+
+		// once one leaves, the other one does
+		hold.V();
+		done.P();
+		Lib.assertTrue(lock.readers.size() == 1);
+		checkDonation(lock.readers.iterator().next(), writer);
+
+		hold.V();
+		done.P();
+		done.P();
+	}
+
+	private static void setPriority(KThread thread, int priority) {
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void checkDonation(KThread holder, KThread waiter) {
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(holder)
+				>= ThreadedKernel.scheduler.getEffectivePriority(waiter));
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The writer holding the lock, or <tt>null</tt>. */
+	private KThread writer = null;
+
+	/** The readers holding the lock, in the order they got it. */
+	private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+
+	private int numWaitingReaders = 0;
+
+	private int numWaitingWriters = 0;
+
+	/** The thread <tt>readQueue</tt> was last acquired for, or <tt>null</tt>. */
+	private KThread readOwner = null;
+
+	/** The thread <tt>writeQueue</tt> was last acquired for, or <tt>null</tt>. */
+	private KThread writeOwner = null;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -57,14 +57,24 @@ public class RoundRobinScheduler extends Scheduler {
 		}
 
 		/**
-		 * The specified thread has received exclusive access, without using
-		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-		 * threads are waiting for access.
+		 * The specified thread has received access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Threads may be
+		 * waiting if the resource can be shared, as a read lock can; they
+		 * keep their places.
 		 */
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Remove a thread from anywhere in the queue.
+		 * 
+		 * @param thread the thread to remove.
+		 */
+		public void remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
 
-			Lib.assertTrue(waitQueue.isEmpty());
+			Lib.assertTrue(waitQueue.remove(thread));
 		}
 
 		/**
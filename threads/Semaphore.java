@@ -33,15 +33,27 @@ public class Semaphore {
 
 	/**
 	 * Atomically wait for this semaphore to become non-zero and decrement it.
+	 * If the value is already non-zero, it is decremented without touching the
+	 * interrupt state; no context switch can happen in between, because
+	 * simulated time does not advance.
 	 */
 	public void P() {
+		if (value > 0) {
+			value--;
+			uncontendedPs++;
+			return;
+		}
+
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (value == 0) {
+			contendedPs++;
+			numWaiting++;
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
 		}
 		else {
+			uncontendedPs++;
 			value--;
 		}
 
@@ -50,13 +62,20 @@ public class Semaphore {
 
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
-	 * sleeping on this semaphore.
+	 * sleeping on this semaphore. If nobody is sleeping, the value is
+	 * incremented without touching the interrupt state.
 	 */
 	public void V() {
+		if (numWaiting == 0) {
+			value++;
+			return;
+		}
+
 		boolean intStatus = Machine.interrupt().disable();
 
 		KThread thread = waitQueue.nextThread();
 		if (thread != null) {
+			numWaiting--;
 			thread.ready();
 		}
 		else {
@@ -66,6 +85,24 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Return the number of <tt>P()</tt> calls that did not have to wait.
+	 * 
+	 * @return the number of uncontended <tt>P()</tt> calls.
+	 */
+	public long getUncontendedPs() {
+		return uncontendedPs;
+	}
+
+	/**
+	 * Return the number of <tt>P()</tt> calls that had to sleep.
+	 * 
+	 * @return the number of contended <tt>P()</tt> calls.
+	 */
+	public long getContendedPs() {
+		return contendedPs;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(Semaphore ping, Semaphore pong) {
 			this.ping = ping;
@@ -101,6 +138,13 @@ public class Semaphore {
 
 	private int value;
 
+	/** The number of threads sleeping in <tt>waitQueue</tt>. */
+	private int numWaiting = 0;
+
+	private long uncontendedPs = 0;
+
+	private long contendedPs = 0;
+
 	private ThreadQueue waitQueue = 
 		ThreadedKernel.scheduler.newThreadQueue(false);
 }
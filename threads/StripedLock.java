@@ -0,0 +1,196 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A fixed set of <tt>ReadWriteLock</tt> stripes, chosen by the hash code of a
+ * key. Threads working on keys in different stripes never wait for each
+ * other, and readers of the same stripe share it, so a table guarded by a
+ * <tt>StripedLock</tt> admits far more parallelism than one guarded by a
+ * single lock. Keys with equal hash codes always map to the same stripe.
+ */
+public class StripedLock {
+	/**
+	 * Allocate a new striped lock with <tt>defaultStripes</tt> stripes.
+	 */
+	public StripedLock() {
+		this(defaultStripes);
+	}
+
+	/**
+	 * Allocate a new striped lock.
+	 *
+	 * @param numStripes the number of stripes, rounded up to a power of two.
+	 */
+	public StripedLock(int numStripes) {
+		Lib.assertTrue(numStripes > 0 && numStripes <= 1 << 30);
+
+		int n = Integer.highestOneBit(numStripes);
+		if (n < numStripes)
+			n <<= 1;
+
+		stripes = new ReadWriteLock[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new ReadWriteLock();
+	}
+
+	/**
+	 * Return the stripe guarding <tt>key</tt>.
+	 *
+	 * @param key the key; may be <tt>null</tt>.
+	 * @return the lock for <tt>key</tt>'s stripe.
+	 */
+	public ReadWriteLock getStripe(Object key) {
+		return stripes[indexFor(key)];
+	}
+
+	/**
+	 * Acquire the stripe guarding <tt>key</tt> for reading.
+	 */
+	public void acquireRead(Object key) {
+		getStripe(key).acquireRead();
+	}
+
+	/**
+	 * Release the stripe guarding <tt>key</tt>, held for reading.
+	 */
+	public void releaseRead(Object key) {
+		getStripe(key).releaseRead();
+	}
+
+	/**
+	 * Acquire the stripe guarding <tt>key</tt> for writing.
+	 */
+	public void acquireWrite(Object key) {
+		getStripe(key).acquireWrite();
+	}
+
+	/**
+	 * Release the stripe guarding <tt>key</tt>, held for writing.
+	 */
+	public void releaseWrite(Object key) {
+		getStripe(key).releaseWrite();
+	}
+
+	/**
+	 * Acquire every stripe for writing, in index order, so that two threads
+	 * doing this cannot deadlock. Use for operations on the whole table.
+	 */
+	public void acquireAllWrite() {
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i].acquireWrite();
+	}
+
+	/**
+	 * Release every stripe acquired by <tt>acquireAllWrite()</tt>.
+	 */
+	public void releaseAllWrite() {
+		for (int i = stripes.length - 1; i >= 0; i--)
+			stripes[i].releaseWrite();
+	}
+
+	/**
+	 * Return the number of stripes.
+	 *
+	 * @return the number of stripes.
+	 */
+	public int getNumStripes() {
+		return stripes.length;
+	}
+
+	private int indexFor(Object key) {
+		int h = (key == null) ? 0 : key.hashCode();
+
+		// mix the high bits down, since only the low bits pick the stripe
+		h ^= (h >>> 16);
+		return h & (stripes.length - 1);
+	}
+
+	/**
+	 * Test that this module is working: writers to different stripes and
+	 * readers of the same stripe run in parallel, while writers to the same
+	 * stripe take turns.
+	 */
+	public static void selfTest() {
+		final StripedLock lock = new StripedLock(4);
+		final Semaphore done = new Semaphore(0);
+		final long holdTime = 1000;
+		final int numThreads = 4;
+
+		Lib.assertTrue(new StripedLock(5).getNumStripes() == 8);
+
+		// find one key per stripe
+		final Integer[] keys = new Integer[lock.getNumStripes()];
+		for (int k = 0, found = 0; found < keys.length; k++) {
+			int i = lock.indexFor(Integer.valueOf(k));
+			if (keys[i] == null) {
+				keys[i] = Integer.valueOf(k);
+				found++;
+			}
+		}
+
+		class Worker implements Runnable {
+			Worker(Object key, boolean write) {
+				this.key = key;
+				this.write = write;
+			}
+
+			public void run() {
+				if (write)
+					lock.acquireWrite(key);
+				else
+					lock.acquireRead(key);
+
+				ThreadedKernel.alarm.waitUntil(holdTime);
+
+				if (write)
+					lock.releaseWrite(key);
+				else
+					lock.releaseRead(key);
+
+				done.V();
+			}
+
+			private Object key;
+
+			private boolean write;
+		}
+
+		// a writer on every stripe: they all overlap
+		long start = Machine.timer().getTime();
+		for (int i = 0; i < numThreads; i++)
+			new KThread(new Worker(keys[i], true)).setName("stripe writer")
+					.fork();
+		for (int i = 0; i < numThreads; i++)
+			done.P();
+		Lib.assertTrue(Machine.timer().getTime() - start < 2 * holdTime);
+
+		// readers of a single key: they all overlap
+		start = Machine.timer().getTime();
+		for (int i = 0; i < numThreads; i++)
+			new KThread(new Worker(keys[0], false)).setName("stripe reader")
+					.fork();
+		for (int i = 0; i < numThreads; i++)
+			done.P();
+		Lib.assertTrue(Machine.timer().getTime() - start < 2 * holdTime);
+
+		// writers of a single key: they run one at a time
+		start = Machine.timer().getTime();
+		for (int i = 0; i < numThreads; i++)
+			new KThread(new Worker(keys[0], true)).setName("stripe writer")
+					.fork();
+		for (int i = 0; i < numThreads; i++)
+			done.P();
+		Lib.assertTrue(Machine.timer().getTime() - start >= numThreads
+				* holdTime);
+
+		// a whole-table writer excludes everyone
+		lock.acquireAllWrite();
+		lock.releaseAllWrite();
+	}
+
+	/** The number of stripes in a lock created with <tt>StripedLock()</tt>. */
+	public static final int defaultStripes = 16;
+
+	private ReadWriteLock[] stripes;
+}
@@ -85,11 +85,25 @@ public abstract class ThreadQueue {
 	 * This method should not be called for a thread returned from
 	 * <tt>nextThread()</tt>.
 	 * 
+	 * <p>
+	 * If several threads can hold the resource at once, as readers hold a
+	 * <tt>ReadWriteLock</tt>, this method may also be called while threads
+	 * are waiting, to make another holder the one they donate priority to.
+	 * 
 	 * @param thread the thread that has received access, but was not returned
 	 * from <tt>nextThread()</tt>.
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Take a thread that is waiting for access off this queue without giving
+	 * it access, for example because its wait timed out. Any priority it
+	 * donated through this queue is withdrawn.
+	 * 
+	 * @param thread the thread to remove, which must be waiting on this queue.
+	 */
+	public abstract void remove(KThread thread);
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
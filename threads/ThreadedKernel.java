@@ -48,14 +48,27 @@ public class ThreadedKernel extends Kernel {
 	public void selfTest() {
 		// KThread.selfTest();
   //       Alarm.selfTest();
-		// Condition2Test.runTests();
+		Condition2Test.runTests();
   //       Communicator.selfTest();
         Boat.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		Channel.selfTest();
+		ReadWriteLock.selfTest();
+		StripedLock.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+
+		int switches = Config.getInteger("KThread.yieldBenchmark", 0);
+		if (switches > 0)
+			KThread.yieldBenchmark(switches);
+
+		int pairs = Config.getInteger("Communicator.stressPairs", 0);
+		if (pairs > 0)
+			Communicator.stressTest(pairs);
 	}
 
 	/**
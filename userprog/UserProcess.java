@@ -221,7 +221,7 @@ public class UserProcess {
      * @param args the arguments to pass to the executable.
      * @return <tt>true</tt> if the executable was successfully loaded.
      */
-    private boolean load(String name, String[] args) {
+    protected boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
         OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
@@ -237,6 +237,7 @@ public class UserProcess {
             Lib.debug(dbgProcess, "\tcoff load failed");
             return false;
         }
+        executableName = name;
 
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
@@ -345,6 +346,14 @@ public class UserProcess {
      */
     protected void unloadSections() {}
 
+    /**
+     * Called before a file syscall that may change or remove the file
+     * <tt>name</tt>, which could be an executable that processes are running.
+     *
+     * @param name the name of the file.
+     */
+    protected void fileChanging(String name) {}
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -404,6 +413,7 @@ public class UserProcess {
         String filename = readVirtualMemoryString(virtaddr, 256);
         if (filename == null) return -1;
 
+        fileChanging(filename);
         OpenFile file = ThreadedKernel.fileSystem.open(filename, true);
         if (file == null) return -1;
 
@@ -427,6 +437,7 @@ public class UserProcess {
         if (filename == null) {
             return -1;
         }
+        fileChanging(filename);
         boolean success = ThreadedKernel.fileSystem.remove(filename);
         return success ? 0 : -1;
     }
@@ -443,6 +454,9 @@ public class UserProcess {
             return -1;
         }
 
+        // The file may be written through the descriptor
+        fileChanging(filename);
+
         // Try to open the file (create=false since we're only opening existing files)
         OpenFile file = ThreadedKernel.fileSystem.open(filename, false);
 
@@ -695,6 +709,9 @@ public class UserProcess {
     /** The program being run by this process. */
     protected Coff coff;
 
+    /** The name of the file <tt>coff</tt> was loaded from. */
+    protected String executableName;
+
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
 
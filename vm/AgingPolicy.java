@@ -0,0 +1,105 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The aging approximation of not-frequently-used. Each physical page has an
+ * 8-bit reference history. For every <tt>VMKernel.agingInterval</tt> ticks,
+ * each history is shifted right and the page's used bit is shifted in at the
+ * top and cleared, so the history records in which of the last eight
+ * intervals the page was referenced, recent intervals weighing more.
+ *
+ * <p>
+ * The histories are only brought up to date when a victim is chosen, by as
+ * many intervals as have passed since the last sample, so aging needs no
+ * timer interrupts and runs under <tt>memoryLock</tt>. A page referenced at
+ * any time since the last sample counts as referenced in the latest interval,
+ * since the used bit cannot tell when the reference happened.
+ *
+ * <p>
+ * The victim is the page with the smallest history, counting a used bit not
+ * yet sampled as a reference in the current interval. Ties go to a clean
+ * page, then to the first page after the previous victim.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		history = new int[numFrames];
+
+		interval = Config.getInteger("VMKernel.agingInterval",
+				defaultInterval);
+		Lib.assertTrue(interval > 0);
+
+		lastSample = Machine.timer().getTime();
+	}
+
+	public void frameAllocated(int ppn) {
+		// a new page counts as referenced in the interval it was loaded
+		history[ppn] = topBit;
+	}
+
+	public int chooseVictim() {
+		age();
+
+		int victim = -1, victimKey = 0;
+		boolean victimDirty = false;
+
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = (hand + i) % numFrames;
+			TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+
+			int key = (history[ppn] >>> 1) | (entry.used ? topBit : 0);
+			if (victim == -1 || key < victimKey
+					|| (key == victimKey && victimDirty && !entry.dirty)) {
+				victim = ppn;
+				victimKey = key;
+				victimDirty = entry.dirty;
+			}
+		}
+
+		hand = (victim + 1) % numFrames;
+		return victim;
+	}
+
+	/**
+	 * Shift the used bits into the histories once for every whole interval
+	 * since the last sample. Every physical page is in use, and the TLB's
+	 * bits have been merged into the page tables.
+	 */
+	private void age() {
+		long intervals = (Machine.timer().getTime() - lastSample) / interval;
+		if (intervals == 0)
+			return;
+
+		lastSample += intervals * interval;
+		int shift = (int) Math.min(intervals, historyBits);
+
+		for (int ppn = 0; ppn < numFrames; ppn++) {
+			TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+			history[ppn] = (history[ppn] >>> shift) | (entry.used ? topBit : 0);
+			entry.used = false;
+		}
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+
+	/** The reference history of each physical page. */
+	private int[] history;
+
+	/** The time between samples of the used bits, in ticks. */
+	private int interval;
+
+	/** The time the histories were last brought up to date. */
+	private long lastSample;
+
+	private static final int historyBits = 8;
+
+	private static final int topBit = 1 << (historyBits - 1);
+
+	private static final int defaultInterval = 2000;
+}
@@ -0,0 +1,53 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. The hand clears the used bit of each page it passes,
+ * so a page is only taken if it has not been referenced for a whole
+ * revolution. Among such pages a clean one is preferred, since it can be
+ * dropped without a swap write; a dirty one is taken only if a full
+ * revolution finds no clean candidate.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void frameAllocated(int ppn) {
+	}
+
+	public int chooseVictim() {
+		int candidate = -1;
+
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+			if (entry.used) {
+				entry.used = false;
+			}
+			else if (!entry.dirty) {
+				return ppn;
+			}
+			else if (candidate == -1) {
+				candidate = ppn;
+			}
+
+			if (i == numFrames - 1 && candidate != -1)
+				break;
+		}
+
+		Lib.assertTrue(candidate != -1);
+		hand = (candidate + 1) % numFrames;
+		return candidate;
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+}
@@ -0,0 +1,39 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides which resident page <tt>VMKernel</tt> evicts when physical memory
+ * is full. The policy is chosen with the <tt>VMKernel.replacementPolicy</tt>
+ * key in the Nachos configuration file, which names a class implementing
+ * this interface.
+ *
+ * <p>
+ * Policies base their decisions on the <tt>used</tt> and <tt>dirty</tt> bits
+ * of the page table entries returned by <tt>VMKernel.getFrameEntry()</tt>.
+ * Both methods are called with <tt>VMKernel.memoryLock</tt> held, and
+ * <tt>chooseVictim()</tt> only after the TLB's bits have been merged into
+ * the page tables. A policy may clear <tt>used</tt> bits, but must not touch
+ * anything else.
+ *
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.WSClockPolicy
+ * @see nachos.vm.AgingPolicy
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Note that physical page <tt>ppn</tt> has just been given to a page that
+	 * is about to be loaded.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void frameAllocated(int ppn);
+
+	/**
+	 * Pick a resident page to evict. Every physical page is in use when this
+	 * is called.
+	 *
+	 * @return the physical page number of the victim.
+	 */
+	public int chooseVictim();
+}
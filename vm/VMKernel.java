@@ -1,5 +1,9 @@
 package nachos.vm;
 
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +11,28 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is managed through a global inverted page table, which
+ * records for every physical page the process and page table entry that map
+ * it. When no page is free, one is taken from a process by the
+ * <tt>PageReplacementPolicy</tt> named by <tt>VMKernel.replacementPolicy</tt>,
+ * the clock algorithm by default.
+ *
+ * <p>
+ * Read-only COFF pages are shared by every process running the same
+ * executable: those processes' page tables all hold the same entry for the
+ * page, so it occupies at most one physical page, and is loaded, used and
+ * evicted once for all of them. Writable pages can be shared the same way,
+ * copy-on-write, when an address space is duplicated: the shared entry is
+ * marked read-only, and a process that writes to it is given its own copy.
+ *
+ * <p>
+ * Evicted pages that exist nowhere else are kept in a single swap file,
+ * divided into page-sized slots. A page keeps its slot after it is read back,
+ * so it can be evicted again for free as long as it stays clean. Dirty pages
+ * are written back in clusters: the page being evicted is written together
+ * with other dirty pages that have not been used recently, in one I/O.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -21,6 +47,27 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		frames = new Frame[numPhysPages];
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			frames[ppn] = new Frame();
+			freeFrames.add(ppn);
+		}
+
+		memoryLock = new Lock();
+
+		policy = (PageReplacementPolicy) Lib.constructObject(Config.getString(
+				"VMKernel.replacementPolicy", defaultReplacementPolicy));
+
+		swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+		Lib.assertTrue(swapFile != null, "cannot create swap file");
+
+		swapClusterSize = Math.min(Config.getInteger(
+				"VMKernel.swapClusterSize", defaultSwapClusterSize),
+				numPhysPages);
+		Lib.assertTrue(swapClusterSize >= 1);
+		swapBuffer = new byte[swapClusterSize * pageSize];
 	}
 
 	/**
@@ -28,6 +75,9 @@ public class VMKernel extends UserKernel {
 	 */
 	public void selfTest() {
 		super.selfTest();
+
+		if (Config.getBoolean("VMKernel.selfTest", false))
+			VMProcess.selfTest();
 	}
 
 	/**
@@ -41,9 +91,620 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Lib.debug(dbgVM, "swap: " + numSwapWriteIOs + " writes for "
+				+ numSwapPagesWritten + " pages");
+
+		// removing the swap file blocks; keep other processes from faulting
+		if (memoryLock != null && !memoryLock.isHeldByCurrentThread())
+			memoryLock.acquire();
+
+		if (swapFile != null) {
+			swapFile.close();
+			ThreadedKernel.fileSystem.remove(swapFileName);
+		}
+
 		super.terminate();
 	}
 
+	/**
+	 * Give a physical page to <tt>entry</tt>, the page table entry of
+	 * <tt>process</tt> for a page that is not resident, evicting another page
+	 * if memory is full. The caller must hold <tt>memoryLock</tt> and is
+	 * responsible for filling the page and validating the entry.
+	 *
+	 * @param process the process that will own the page.
+	 * @param entry the entry that will map the page.
+	 * @return the physical page number.
+	 */
+	static int allocateFrame(VMProcess process, TranslationEntry entry) {
+		int ppn = allocateFrame();
+
+		frames[ppn].process = process;
+		frames[ppn].entry = entry;
+		policy.frameAllocated(ppn);
+
+		return ppn;
+	}
+
+	/**
+	 * Give a physical page to the shared page <tt>page</tt>, which is not
+	 * resident, like <tt>allocateFrame(VMProcess, TranslationEntry)</tt>.
+	 *
+	 * @param page the shared page.
+	 * @return the physical page number.
+	 */
+	static int allocateFrame(SharedPage page) {
+		int ppn = allocateFrame();
+
+		frames[ppn].shared = page;
+		frames[ppn].entry = page.entry;
+		policy.frameAllocated(ppn);
+
+		return ppn;
+	}
+
+	private static int allocateFrame() {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		int ppn;
+		if (!freeFrames.isEmpty()) {
+			ppn = freeFrames.removeFirst();
+		}
+		else {
+			syncTLB();
+			ppn = policy.chooseVictim();
+
+			Frame victim = frames[ppn];
+			Lib.debug(dbgVM, "\tevicting vpn " + victim.entry.vpn + " from ppn "
+					+ ppn);
+
+			// unmap first, so the page cannot change while it is written
+			if (victim.process != null)
+				victim.process.evict(victim.entry);
+			else
+				evictShared(victim.entry);
+
+			if (victim.entry.dirty)
+				writeBack(ppn);
+
+			victim.process = null;
+			victim.shared = null;
+			victim.entry = null;
+		}
+
+		return ppn;
+	}
+
+	/**
+	 * Return a physical page to the free list. The caller must hold
+	 * <tt>memoryLock</tt> and must already have invalidated the entry that
+	 * mapped it.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void freeFrame(int ppn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		frames[ppn].process = null;
+		frames[ppn].shared = null;
+		frames[ppn].entry = null;
+		freeFrames.add(ppn);
+	}
+
+	/**
+	 * Return the page that every process running the current version of
+	 * <tt>executable</tt> maps its read-only page <tt>vpn</tt> with, creating
+	 * it if no such process holds it yet. If <tt>coff</tt> is laid out
+	 * differently from the current version, or there is none since
+	 * <tt>executableChanged()</tt>, it becomes the current version. Each call
+	 * adds a reference to the page, which must be dropped with
+	 * <tt>releaseSharedPage()</tt>. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param executable the name of the executable.
+	 * @param coff the calling process's copy of the executable.
+	 * @param vpn a read-only page of the executable.
+	 * @return the shared page.
+	 */
+	static SharedPage shareReadOnlyPage(String executable, Coff coff, int vpn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		ExecutableVersion version = executables.get(executable);
+		if (version == null || !VMProcess.sameLayout(version.layout, coff)) {
+			version = new ExecutableVersion(executable, coff);
+			executables.put(executable, version);
+		}
+
+		SharedPage page = version.pages.get(vpn);
+		if (page == null) {
+			page = new SharedPage();
+			page.version = version;
+			page.entry = new TranslationEntry(vpn, -1, false, true, false,
+					false);
+			version.pages.put(vpn, page);
+		}
+
+		page.references++;
+		return page;
+	}
+
+	/**
+	 * Note that the file <tt>executable</tt> may be about to change, so that
+	 * processes started from now on do not share pages with the ones already
+	 * running it. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param executable the name of the file.
+	 */
+	static void executableChanged(String executable) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		executables.remove(executable);
+	}
+
+	/**
+	 * Turn page <tt>entry</tt> of <tt>process</tt>, which is resident or has
+	 * swap slot <tt>slot</tt>, into a copy-on-write page referenced only by
+	 * <tt>process</tt>. The entry becomes the shared entry, and is marked
+	 * read-only. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param process the process that owns the page.
+	 * @param entry the page's entry.
+	 * @param slot the page's swap slot, or -1, which now belongs to the
+	 * shared page.
+	 * @return the shared page.
+	 */
+	static SharedPage shareCopyOnWrite(VMProcess process,
+			TranslationEntry entry, int slot) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(!entry.readOnly && (entry.valid || slot != -1));
+
+		// the TLB's copy would still allow writes
+		invalidateTLB(process, entry);
+		entry.readOnly = true;
+
+		SharedPage page = new SharedPage();
+		page.entry = entry;
+		page.copyOnWrite = true;
+		page.swapSlot = slot;
+		page.references = 1;
+
+		if (entry.valid) {
+			frames[entry.ppn].process = null;
+			frames[entry.ppn].shared = page;
+		}
+
+		return page;
+	}
+
+	/**
+	 * Add a reference to a shared page, for another process that maps it.
+	 * The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param page the shared page.
+	 */
+	static void referenceSharedPage(SharedPage page) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(page.references > 0);
+
+		page.references++;
+	}
+
+	/**
+	 * Make <tt>process</tt>, which holds the only reference to the
+	 * copy-on-write page <tt>page</tt>, its private owner again. The entry
+	 * becomes writable, and the page's swap slot is returned for the process
+	 * to record. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param process the process holding the last reference.
+	 * @param page the copy-on-write page.
+	 * @return the page's swap slot, or -1.
+	 */
+	static int takeSharedPage(VMProcess process, SharedPage page) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(page.copyOnWrite && page.references == 1);
+
+		invalidateTLB(process, page.entry);
+		page.entry.readOnly = false;
+		page.references = 0;
+
+		if (page.entry.valid) {
+			frames[page.entry.ppn].process = process;
+			frames[page.entry.ppn].shared = null;
+		}
+
+		return page.swapSlot;
+	}
+
+	/**
+	 * Drop a reference to a shared page. The page, and its swap slot, are
+	 * freed with the last reference. The caller must hold
+	 * <tt>memoryLock</tt>, and must already have removed the page from its
+	 * page table and the TLB.
+	 *
+	 * @param page the shared page.
+	 */
+	static void releaseSharedPage(SharedPage page) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(page.references > 0);
+
+		if (--page.references > 0)
+			return;
+
+		ExecutableVersion version = page.version;
+		if (version != null) {
+			version.pages.remove(page.entry.vpn);
+			if (version.pages.isEmpty()
+					&& executables.get(version.name) == version)
+				executables.remove(version.name);
+		}
+
+		if (page.entry.valid) {
+			page.entry.valid = false;
+			freeFrame(page.entry.ppn);
+		}
+
+		if (page.swapSlot != -1)
+			freeSwapSlot(page.swapSlot);
+	}
+
+	/**
+	 * Unmap a shared page from every process at once, by invalidating the
+	 * entry they share. Only the TLB owner can have a copy of it cached.
+	 *
+	 * @param entry the shared entry.
+	 */
+	private static void evictShared(TranslationEntry entry) {
+		if (tlbOwner != null && tlbOwner.maps(entry))
+			invalidateTLB(tlbOwner, entry);
+
+		entry.valid = false;
+	}
+
+	/**
+	 * Return the page table entry mapping physical page <tt>ppn</tt>, for
+	 * use by the replacement policy.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the entry, or <tt>null</tt> if the page is free.
+	 */
+	static TranslationEntry getFrameEntry(int ppn) {
+		return frames[ppn].entry;
+	}
+
+	/**
+	 * Write the dirty page in <tt>ppn</tt>, which has just been unmapped, to
+	 * swap. Up to <tt>swapClusterSize - 1</tt> other dirty pages whose used
+	 * bits are clear, taken in order from the one after <tt>ppn</tt>, are
+	 * written along with it, into adjacent slots with a single write. Those pages stay
+	 * mapped but become clean, so evicting them later costs no I/O.
+	 *
+	 * @param ppn the physical page being evicted.
+	 */
+	private static void writeBack(int ppn) {
+		int[] cluster = new int[swapClusterSize];
+		int count = 0;
+
+		cluster[count++] = ppn;
+		for (int i = 0; i < frames.length && count < swapClusterSize; i++) {
+			int other = (ppn + 1 + i) % frames.length;
+			TranslationEntry entry = frames[other].entry;
+
+			if (other != ppn && entry != null && entry.valid && entry.dirty
+					&& !entry.used)
+				cluster[count++] = other;
+		}
+
+		// rewrite a lone page in place; a cluster needs adjacent slots
+		int firstSlot = getSwapSlot(frames[ppn]);
+		if (count > 1 || firstSlot == -1)
+			firstSlot = allocateSwapSlots(count);
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < count; i++) {
+			Frame frame = frames[cluster[i]];
+			System.arraycopy(memory, cluster[i] * pageSize, swapBuffer, i
+					* pageSize, pageSize);
+
+			// a write to a still-mapped page during the I/O dirties it again
+			frame.entry.dirty = false;
+			setSwapSlot(frame, firstSlot + i);
+		}
+
+		Lib.debug(dbgVM, "\twriting " + count + " pages to swap slot "
+				+ firstSlot);
+
+		int length = count * pageSize;
+		int written = swapFile.write(firstSlot * pageSize, swapBuffer, 0,
+				length);
+		Lib.assertTrue(written == length, "swap write failed");
+
+		numSwapWriteIOs++;
+		numSwapPagesWritten += count;
+		for (int i = 0; i < count; i++)
+			Machine.incrNumSwapWrites();
+	}
+
+	private static int getSwapSlot(Frame frame) {
+		if (frame.shared != null)
+			return frame.shared.swapSlot;
+		else
+			return frame.process.getSwapSlot(frame.entry.vpn);
+	}
+
+	private static void setSwapSlot(Frame frame, int slot) {
+		if (frame.shared == null) {
+			frame.process.setSwapSlot(frame.entry.vpn, slot);
+			return;
+		}
+
+		if (frame.shared.swapSlot != -1 && frame.shared.swapSlot != slot)
+			freeSwapSlot(frame.shared.swapSlot);
+
+		frame.shared.swapSlot = slot;
+	}
+
+	/**
+	 * Read swap slot <tt>slot</tt> into physical page <tt>ppn</tt>. The slot
+	 * stays allocated, and keeps a valid copy of the page until it is dirtied.
+	 *
+	 * @param slot the swap slot to read.
+	 * @param ppn the physical page to fill.
+	 */
+	static void swapIn(int slot, int ppn) {
+		Lib.assertTrue(swapSlotsInUse.get(slot));
+
+		byte[] memory = Machine.processor().getMemory();
+		int read = swapFile.read(slot * pageSize, memory, ppn * pageSize,
+				pageSize);
+		Lib.assertTrue(read == pageSize, "swap read failed");
+
+		Machine.incrNumSwapReads();
+	}
+
+	/**
+	 * Allocate <tt>count</tt> adjacent swap slots, using the lowest free run
+	 * that is long enough, or extending the swap file.
+	 *
+	 * @param count the number of slots.
+	 * @return the first slot of the run.
+	 */
+	private static int allocateSwapSlots(int count) {
+		int first = swapSlotsInUse.nextClearBit(0);
+		while (true) {
+			int next = swapSlotsInUse.nextSetBit(first);
+			if (next == -1 || next - first >= count)
+				break;
+
+			first = swapSlotsInUse.nextClearBit(next);
+		}
+
+		swapSlotsInUse.set(first, first + count);
+		return first;
+	}
+
+	/**
+	 * Release a swap slot whose contents are no longer needed.
+	 *
+	 * @param slot the swap slot.
+	 */
+	static void freeSwapSlot(int slot) {
+		Lib.assertTrue(swapSlotsInUse.get(slot));
+
+		swapSlotsInUse.clear(slot);
+	}
+
+	/**
+	 * Make <tt>process</tt> the owner of the TLB, discarding any entries left
+	 * by the previous owner. Called when a process is switched to.
+	 *
+	 * @param process the process whose pages the TLB will map.
+	 */
+	static void switchTLB(VMProcess process) {
+		Processor processor = Machine.processor();
+		TranslationEntry invalid = new TranslationEntry();
+
+		for (int i = 0; i < processor.getTLBSize(); i++)
+			processor.writeTLBEntry(i, invalid);
+
+		tlbOwner = process;
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back to the owning
+	 * process's page table, and give up the TLB. Called when a process is
+	 * switched away from.
+	 *
+	 * @param process the process being switched away from.
+	 */
+	static void releaseTLB(VMProcess process) {
+		if (tlbOwner != process)
+			return;
+
+		syncTLB();
+		tlbOwner = null;
+	}
+
+	/**
+	 * Load <tt>entry</tt>, a valid page table entry of the TLB owner, into the
+	 * TLB. An invalid slot in the page's set is used if there is one;
+	 * otherwise the set's slots are replaced in turn.
+	 *
+	 * @param entry the page table entry to load.
+	 */
+	static void fillTLB(TranslationEntry entry) {
+		Lib.assertTrue(entry.valid);
+
+		Processor processor = Machine.processor();
+		int associativity = processor.getTLBAssociativity();
+		int first = (entry.vpn % (processor.getTLBSize() / associativity))
+				* associativity;
+
+		int victim = first + (tlbReplaceCounter++ % associativity);
+		for (int i = first; i < first + associativity; i++) {
+			if (!processor.readTLBEntry(i).valid) {
+				victim = i;
+				break;
+			}
+		}
+
+		syncTLBEntry(victim);
+		processor.writeTLBEntry(victim, entry);
+	}
+
+	/**
+	 * Remove any TLB entry that maps <tt>entry</tt>'s page, if the TLB belongs
+	 * to <tt>process</tt>, merging its used and dirty bits into
+	 * <tt>entry</tt> first.
+	 *
+	 * @param process the process that owns <tt>entry</tt>.
+	 * @param entry the page table entry being unmapped.
+	 */
+	static void invalidateTLB(VMProcess process, TranslationEntry entry) {
+		if (tlbOwner != process || !Machine.processor().hasTLB())
+			return;
+
+		Processor processor = Machine.processor();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry cached = processor.readTLBEntry(i);
+			if (cached.valid && cached.vpn == entry.vpn) {
+				syncTLBEntry(i);
+				processor.writeTLBEntry(i, new TranslationEntry());
+			}
+		}
+	}
+
+	/**
+	 * Merge the used and dirty bits of every valid TLB entry into the TLB
+	 * owner's page table, then clear them in the TLB, so the page table is
+	 * the only place the kernel has to clear them and later references are
+	 * noticed again.
+	 */
+	static void syncTLB() {
+		if (tlbOwner == null || !Machine.processor().hasTLB())
+			return;
+
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+			syncTLBEntry(i);
+	}
+
+	private static void syncTLBEntry(int number) {
+		Processor processor = Machine.processor();
+		TranslationEntry cached = processor.readTLBEntry(number);
+		if (!cached.valid || tlbOwner == null)
+			return;
+
+		TranslationEntry entry = tlbOwner.getEntry(cached.vpn);
+		entry.used |= cached.used;
+		entry.dirty |= cached.dirty;
+
+		if (cached.used || cached.dirty) {
+			cached.used = false;
+			cached.dirty = false;
+			processor.writeTLBEntry(number, cached);
+		}
+	}
+
+	/**
+	 * An entry in the inverted page table: the process or shared page that
+	 * owns a physical page and the entry mapping it, or <tt>null</tt>s if the
+	 * page is free.
+	 */
+	private static class Frame {
+		VMProcess process = null;
+
+		SharedPage shared = null;
+
+		TranslationEntry entry = null;
+	}
+
+	/**
+	 * A page mapped by several processes through one shared, read-only entry:
+	 * either a read-only COFF page of an executable, or a copy-on-write page
+	 * of a duplicated address space.
+	 */
+	static class SharedPage {
+		/** The entry in every sharing process's page table. */
+		TranslationEntry entry;
+
+		/** The number of processes mapping the page. */
+		int references = 0;
+
+		/** <tt>true</tt> if a write should give the writer its own copy. */
+		boolean copyOnWrite = false;
+
+		/** The swap slot holding a copy of the page, or -1. */
+		int swapSlot = -1;
+
+		/** The executable this page belongs to, or <tt>null</tt>. */
+		ExecutableVersion version = null;
+	}
+
+	/**
+	 * The read-only pages shared by the processes running one version of an
+	 * executable: those that loaded it with the same layout, without the file
+	 * being changed through a file syscall in between.
+	 */
+	static class ExecutableVersion {
+		ExecutableVersion(String name, Coff layout) {
+			this.name = name;
+			this.layout = layout;
+		}
+
+		String name;
+
+		/** The copy of the executable that started this version. */
+		Coff layout;
+
+		/** The shared pages, by virtual page number. */
+		HashMap<Integer, SharedPage> pages = new HashMap<Integer, SharedPage>();
+	}
+
+	/**
+	 * Serializes page faults and every change to the inverted page table, the
+	 * swap file and page table entries' residency.
+	 */
+	static Lock memoryLock;
+
+	/** The inverted page table, indexed by physical page number. */
+	private static Frame[] frames;
+
+	private static LinkedList<Integer> freeFrames = new LinkedList<Integer>();
+
+	/** The current version of each executable whose pages are shared. */
+	private static HashMap<String, ExecutableVersion> executables =
+		new HashMap<String, ExecutableVersion>();
+
+	/** Chooses the page to evict when no page is free. */
+	private static PageReplacementPolicy policy;
+
+	private static final String defaultReplacementPolicy =
+		"nachos.vm.ClockPolicy";
+
+	/** The process whose pages are mapped by the TLB, if any. */
+	private static VMProcess tlbOwner = null;
+
+	private static int tlbReplaceCounter = 0;
+
+	private static OpenFile swapFile;
+
+	/** The swap slots holding a page, one bit per page-sized slot. */
+	private static BitSet swapSlotsInUse = new BitSet();
+
+	/** The most pages written to swap by a single write. */
+	private static int swapClusterSize;
+
+	private static final int defaultSwapClusterSize = 8;
+
+	/** Staging area for a cluster, so it can be written with one call. */
+	private static byte[] swapBuffer;
+
+	private static int numSwapWriteIOs = 0;
+
+	private static int numSwapPagesWritten = 0;
+
+	private static final String swapFileName = "nachos.swap";
+
+	private static final int pageSize = Processor.pageSize;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
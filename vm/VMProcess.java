@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.io.EOFException;
+import java.util.Arrays;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +10,25 @@ import nachos.vm.*;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is resident when the process starts. A page is brought in the
+ * first time it is touched, by the user program or by the kernel copying
+ * syscall arguments: COFF pages are read from the executable, stack and
+ * argument pages start out zeroed, and pages that have been written to swap
+ * are read back from there.
+ *
+ * <p>
+ * Read-only COFF pages are mapped with entries shared with every other
+ * process running the same version of the executable (see
+ * <tt>VMKernel</tt>), so a page already brought in by one of them is not
+ * loaded again. A file syscall that may change an executable starts a new
+ * version for the processes that run it afterwards.
+ *
+ * <p>
+ * <tt>duplicate()</tt> copies an address space lazily: the pages the
+ * process has touched are shared copy-on-write with the copy, and a page is
+ * only copied when one of the processes writes to it.
  */
 public class VMProcess extends UserProcess {
 	/**
@@ -22,6 +44,9 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+
+		if (Machine.processor().hasTLB())
+			VMKernel.releaseTLB(this);
 	}
 
 	/**
@@ -29,43 +54,613 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if (Machine.processor().hasTLB())
+			VMKernel.switchTLB(this);
+		else
+			super.restoreState();
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
-	 * 
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		VMKernel.memoryLock.acquire();
+		mapSections();
+		VMKernel.memoryLock.release();
+
+		return true;
+	}
+
+	/**
+	 * Build page tables in which no page is resident yet, sharing the
+	 * executable's read-only pages. The caller must hold
+	 * <tt>VMKernel.memoryLock</tt>.
+	 */
+	private void mapSections() {
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+
+		pageSections = new CoffSection[numPages];
+		sharedPages = new VMKernel.SharedPage[numPages];
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tdeferring " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				pageSections[vpn] = section;
+
+				if (section.isReadOnly()) {
+					sharedPages[vpn] = VMKernel.shareReadOnlyPage(
+							executableName, coff, vpn);
+					pageTable[vpn] = sharedPages[vpn].entry;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a process with a copy of this process's address space, running
+	 * the same executable. Nothing is copied yet: every page this process
+	 * has touched becomes a copy-on-write page shared by the two processes,
+	 * and the others are loaded by each process on its own, as usual. The
+	 * new process does not start running.
+	 *
+	 * @return the new process, or <tt>null</tt> if the executable could not
+	 * be opened again.
+	 */
+	public VMProcess duplicate() {
+		OpenFile executable = ThreadedKernel.fileSystem.open(executableName,
+				false);
+		if (executable == null)
+			return null;
+
+		VMProcess child = (VMProcess) newUserProcess();
+		try {
+			child.coff = new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			return null;
+		}
+
+		// the file may have been replaced since this process loaded it
+		if (!sameLayout(coff, child.coff)) {
+			child.coff.close();
+			return null;
+		}
+
+		child.executableName = executableName;
+		child.numPages = numPages;
+
+		VMKernel.memoryLock.acquire();
+
+		child.mapSections();
+
+		// or changed through a file syscall, starting a new version
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (sharedPages[vpn] != null && !sharedPages[vpn].copyOnWrite
+					&& child.sharedPages[vpn] != sharedPages[vpn]) {
+				VMKernel.memoryLock.release();
+				child.unloadSections();
+				return null;
+			}
+		}
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			VMKernel.SharedPage page = sharedPages[vpn];
+			if (page == null) {
+				if (!pageTable[vpn].valid && swapSlots[vpn] == -1)
+					continue;
+
+				page = VMKernel.shareCopyOnWrite(this, pageTable[vpn],
+						swapSlots[vpn]);
+				sharedPages[vpn] = page;
+				swapSlots[vpn] = -1;
+			}
+
+			if (page.copyOnWrite) {
+				VMKernel.referenceSharedPage(page);
+				child.sharedPages[vpn] = page;
+				child.pageTable[vpn] = page.entry;
+			}
+		}
+
+		VMKernel.memoryLock.release();
+
+		return child;
+	}
+
+	/**
+	 * Test if two copies of an executable have the same sections, at the same
+	 * pages.
+	 */
+	static boolean sameLayout(Coff a, Coff b) {
+		if (a.getNumSections() != b.getNumSections())
+			return false;
+
+		for (int s = 0; s < a.getNumSections(); s++) {
+			CoffSection sa = a.getSection(s), sb = b.getSection(s);
+			if (sa.getFirstVPN() != sb.getFirstVPN()
+					|| sa.getLength() != sb.getLength()
+					|| sa.isReadOnly() != sb.isReadOnly())
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Test that processes running one version of an executable share its
+	 * read-only pages, and that a file syscall that may change the file starts
+	 * a new version, which <tt>duplicate()</tt> does not mix with the old one.
+	 * Then test <tt>duplicate()</tt>'s copy-on-write pages. The processes are
+	 * loaded but never run.
+	 */
+	public static void selfTest() {
+		String name = "halt.coff";
+		String[] args = new String[] {};
+
+		VMProcess a = new VMProcess(), b = new VMProcess();
+		Lib.assertTrue(a.load(name, args) && b.load(name, args));
+
+		int vpn = 0;
+		while (a.sharedPages[vpn] == null)
+			vpn++;
+		Lib.assertTrue(b.sharedPages[vpn] == a.sharedPages[vpn]);
+
+		a.fileChanging(name);
+		VMProcess c = new VMProcess();
+		Lib.assertTrue(c.load(name, args));
+		Lib.assertTrue(c.sharedPages[vpn] != a.sharedPages[vpn]);
+		Lib.assertTrue(a.duplicate() == null);
+
+		VMProcess d = c.duplicate();
+		Lib.assertTrue(d != null && d.sharedPages[vpn] == c.sharedPages[vpn]);
+
+		a.unloadSections();
+		b.unloadSections();
+		c.unloadSections();
+		d.unloadSections();
+
+		duplicateTest(name, args);
+	}
+
+	/**
+	 * Test that a process and its copy each see only their own writes to a
+	 * page shared copy-on-write, whether the writing process copies the page
+	 * or, holding the last reference, takes it over.
+	 */
+	private static void duplicateTest(String name, String[] args) {
+		VMProcess parent = new VMProcess();
+		Lib.assertTrue(parent.load(name, args));
+
+		// the top page of the stack, which is writable
+		int vpn = parent.numPages - 2;
+		int vaddr = Processor.makeAddress(vpn, 0);
+		writeString(parent, vaddr, "parent");
+
+		VMProcess child = parent.duplicate();
+		Lib.assertTrue(child != null && parent.isCopyOnWrite(vpn)
+				&& child.sharedPages[vpn] == parent.sharedPages[vpn]);
+		checkString(child, vaddr, "parent");
+
+		// a write fault with another reference left copies the page
+		TranslationEntry shared = parent.pageTable[vpn];
+		Lib.assertTrue(child.handleWriteFault(vaddr));
+		Lib.assertTrue(child.pageTable[vpn] != shared
+				&& !child.isCopyOnWrite(vpn));
+		writeString(child, vaddr, "child");
+		checkString(parent, vaddr, "parent");
+		checkString(child, vaddr, "child");
+
+		// the parent now holds the last reference, so a write takes it over
+		writeString(parent, vaddr, "parent again");
+		Lib.assertTrue(parent.pageTable[vpn] == shared && !shared.readOnly
+				&& !parent.isCopyOnWrite(vpn));
+		checkString(parent, vaddr, "parent again");
+		checkString(child, vaddr, "child");
+
+		// so does a write fault, once the other process has exited
+		VMProcess grandchild = child.duplicate();
+		Lib.assertTrue(grandchild != null && child.isCopyOnWrite(vpn));
+		shared = child.pageTable[vpn];
+		grandchild.unloadSections();
+		Lib.assertTrue(child.handleWriteFault(vaddr));
+		Lib.assertTrue(child.pageTable[vpn] == shared && !shared.readOnly
+				&& !child.isCopyOnWrite(vpn));
+		writeString(child, vaddr, "child again");
+		checkString(child, vaddr, "child again");
+		checkString(parent, vaddr, "parent again");
+
+		parent.unloadSections();
+		child.unloadSections();
+	}
+
+	private static void writeString(VMProcess process, int vaddr, String s) {
+		byte[] bytes = (s + "\0").getBytes();
+		Lib.assertTrue(process.writeVirtualMemory(vaddr, bytes) == bytes.length);
+	}
+
+	private static void checkString(VMProcess process, int vaddr, String s) {
+		Lib.assertTrue(s.equals(process.readVirtualMemoryString(vaddr, 256)));
+	}
+
+	/**
+	 * Stop sharing pages of <tt>name</tt>, if it is an executable, with the
+	 * processes started from now on.
+	 */
+	protected void fileChanging(String name) {
+		VMKernel.memoryLock.acquire();
+		VMKernel.executableChanged(name);
+		VMKernel.memoryLock.release();
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel.memoryLock.acquire();
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (sharedPages[vpn] != null) {
+				VMKernel.invalidateTLB(this, entry);
+				VMKernel.releaseSharedPage(sharedPages[vpn]);
+				sharedPages[vpn] = null;
+			}
+			else if (entry.valid) {
+				VMKernel.invalidateTLB(this, entry);
+				entry.valid = false;
+				VMKernel.freeFrame(entry.ppn);
+			}
+
+			if (swapSlots[vpn] != -1) {
+				VMKernel.freeSwapSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		VMKernel.memoryLock.release();
+
+		coff.close();
+	}
+
+	/**
+	 * Transfer data from this process's virtual memory to the specified array,
+	 * faulting in each page as it is reached.
+	 */
+	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return transfer(vaddr, data, offset, length, false);
+	}
+
+	/**
+	 * Transfer data from the specified array to this process's virtual memory,
+	 * faulting in each page as it is reached, and copying copy-on-write pages.
+	 * Stops at a read-only page.
+	 */
+	public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+			int length) {
+		return transfer(vaddr, data, offset, length, true);
+	}
+
+	private int transfer(int vaddr, byte[] data, int offset, int length,
+			boolean writing) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr);
+			int pageOffset = Processor.offsetFromAddress(vaddr);
+			int chunk = Math.min(length - amount, pageSize - pageOffset);
+
+			if (vaddr < 0 || vpn >= numPages
+					|| (writing && pageTable[vpn].readOnly
+							&& !isCopyOnWrite(vpn)))
+				break;
+
+			VMKernel.memoryLock.acquire();
+
+			TranslationEntry entry;
+			if (writing && isCopyOnWrite(vpn))
+				entry = copyOnWrite(vpn);
+			else
+				entry = pageIn(vpn);
+			int paddr = entry.ppn * pageSize + pageOffset;
+
+			if (writing)
+				System.arraycopy(data, offset + amount, memory, paddr, chunk);
+			else
+				System.arraycopy(memory, paddr, data, offset + amount, chunk);
+
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			VMKernel.memoryLock.release();
+
+			amount += chunk;
+			vaddr += chunk;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Make virtual page <tt>vpn</tt> resident, if it is not already, and
+	 * return its page table entry. The caller must hold
+	 * <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn a virtual page number of this process.
+	 * @return the valid entry mapping <tt>vpn</tt>.
+	 */
+	private TranslationEntry pageIn(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid)
+			return entry;
+
+		int ppn, slot;
+		if (sharedPages[vpn] != null) {
+			ppn = VMKernel.allocateFrame(sharedPages[vpn]);
+			slot = sharedPages[vpn].swapSlot;
+		}
+		else {
+			ppn = VMKernel.allocateFrame(this, entry);
+			slot = swapSlots[vpn];
+		}
+
+		if (slot != -1) {
+			Lib.debug(dbgVM, "\tswapping in vpn " + vpn);
+			VMKernel.swapIn(slot, ppn);
+			entry.dirty = false;
+		}
+		else if (pageSections[vpn] != null) {
+			Lib.debug(dbgVM, "\tloading vpn " + vpn + " from COFF");
+			CoffSection section = pageSections[vpn];
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			if (section.isInitialzed())
+				Machine.incrNumCOFFReads();
+			entry.dirty = false;
+		}
+		else {
+			Lib.debug(dbgVM, "\tzero-filling vpn " + vpn);
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+			entry.dirty = false;
+		}
+
+		Machine.processor().invalidateInstructionCache(ppn);
+
+		entry.ppn = ppn;
+		entry.used = false;
+		entry.valid = true;
+
+		return entry;
+	}
+
+	/**
+	 * Return <tt>true</tt> if page <tt>vpn</tt> is shared copy-on-write.
+	 *
+	 * @param vpn a virtual page number of this process.
+	 * @return <tt>true</tt> if a write to the page must copy it first.
+	 */
+	private boolean isCopyOnWrite(int vpn) {
+		return sharedPages[vpn] != null && sharedPages[vpn].copyOnWrite;
+	}
+
+	/**
+	 * Give this process a private, writable page <tt>vpn</tt> in place of
+	 * the copy-on-write page it shares, and return its entry. If no other
+	 * process shares the page any more, the page itself is taken over;
+	 * otherwise it is copied into a new physical page. The caller must hold
+	 * <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn a copy-on-write page of this process.
+	 * @return the valid, writable entry mapping <tt>vpn</tt>.
+	 */
+	private TranslationEntry copyOnWrite(int vpn) {
+		VMKernel.SharedPage page = sharedPages[vpn];
+
+		if (page.references == 1) {
+			swapSlots[vpn] = VMKernel.takeSharedPage(this, page);
+			sharedPages[vpn] = null;
+			return pageIn(vpn);
+		}
+
+		// copy through a buffer, since allocating a frame may evict the page
+		TranslationEntry shared = pageIn(vpn);
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = new byte[pageSize];
+		System.arraycopy(memory, shared.ppn * pageSize, buffer, 0, pageSize);
+
+		Lib.debug(dbgVM, "\tcopying vpn " + vpn + " on write");
+
+		VMKernel.invalidateTLB(this, shared);
+		VMKernel.releaseSharedPage(page);
+		sharedPages[vpn] = null;
+
+		TranslationEntry entry = new TranslationEntry(vpn, -1, false, false,
+				false, false);
+		pageTable[vpn] = entry;
+
+		int ppn = VMKernel.allocateFrame(this, entry);
+		System.arraycopy(buffer, 0, memory, ppn * pageSize, pageSize);
+		Machine.processor().invalidateInstructionCache(ppn);
+
+		// the only copy is in memory
+		entry.ppn = ppn;
+		entry.dirty = true;
+		entry.valid = true;
+
+		return entry;
+	}
+
+	/**
+	 * Unmap the physical page mapped by <tt>entry</tt>. Called by
+	 * <tt>VMKernel</tt> with <tt>memoryLock</tt> held, which writes the page
+	 * to swap afterwards if it is dirty.
+	 *
+	 * @param entry the valid entry to unmap.
+	 */
+	void evict(TranslationEntry entry) {
+		VMKernel.invalidateTLB(this, entry);
+		entry.valid = false;
+	}
+
+	/**
+	 * Return the swap slot holding a copy of page <tt>vpn</tt>, or -1.
+	 *
+	 * @param vpn a virtual page number of this process.
+	 * @return the swap slot.
+	 */
+	int getSwapSlot(int vpn) {
+		return swapSlots[vpn];
+	}
+
+	/**
+	 * Record that page <tt>vpn</tt> is being written to swap slot
+	 * <tt>slot</tt>, releasing the slot it used before, if different.
+	 *
+	 * @param vpn a virtual page number of this process.
+	 * @param slot the page's new swap slot.
+	 */
+	void setSwapSlot(int vpn, int slot) {
+		if (swapSlots[vpn] != -1 && swapSlots[vpn] != slot)
+			VMKernel.freeSwapSlot(swapSlots[vpn]);
+
+		swapSlots[vpn] = slot;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this process maps a page with <tt>entry</tt>.
+	 *
+	 * @param entry a page table entry.
+	 * @return <tt>true</tt> if <tt>entry</tt> is in this page table.
+	 */
+	boolean maps(TranslationEntry entry) {
+		return entry.vpn < numPages && pageTable[entry.vpn] == entry;
+	}
+
+	/**
+	 * Return the page table entry for <tt>vpn</tt>.
+	 *
+	 * @param vpn a virtual page number of this process.
+	 * @return the entry.
+	 */
+	TranslationEntry getEntry(int vpn) {
+		return pageTable[vpn];
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionPageFault:
+		case Processor.exceptionTLBMiss:
+			int vaddr = processor.readRegister(Processor.regBadVAddr);
+			if (!handleFault(vaddr, cause == Processor.exceptionTLBMiss))
+				super.handleException(cause);
+			break;
+		case Processor.exceptionReadOnly:
+			vaddr = processor.readRegister(Processor.regBadVAddr);
+			if (!handleWriteFault(vaddr))
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Handle a page fault or TLB miss on <tt>vaddr</tt> by making its page
+	 * resident and, on a TLB miss, loading it into the TLB. The faulting
+	 * instruction is then restarted.
+	 *
+	 * @param vaddr the faulting virtual address.
+	 * @param tlbMiss <tt>true</tt> if the fault was a TLB miss.
+	 * @return <tt>false</tt> if <tt>vaddr</tt> is outside the address space.
+	 */
+	private boolean handleFault(int vaddr, boolean tlbMiss) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= numPages)
+			return false;
+
+		/*
+		 * A TLB miss on a resident page is not a page fault. Nothing blocks
+		 * between the test and the fill, so it needs no lock; taking it here
+		 * would let processes waiting for memoryLock flush each other's TLB
+		 * entries before any of them gets to execute an instruction.
+		 */
+		if (tlbMiss && pageTable[vpn].valid) {
+			VMKernel.fillTLB(pageTable[vpn]);
+			return true;
+		}
+
+		VMKernel.memoryLock.acquire();
+
+		TranslationEntry entry = pageIn(vpn);
+		if (tlbMiss)
+			VMKernel.fillTLB(entry);
+
+		VMKernel.memoryLock.release();
+		return true;
+	}
+
+	/**
+	 * Handle a write to a read-only page by copying it, if it is a
+	 * copy-on-write page. The faulting instruction is then restarted.
+	 *
+	 * @param vaddr the faulting virtual address.
+	 * @return <tt>false</tt> if the page really is read-only.
+	 */
+	private boolean handleWriteFault(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= numPages || !isCopyOnWrite(vpn))
+			return false;
+
+		VMKernel.memoryLock.acquire();
+
+		TranslationEntry entry = copyOnWrite(vpn);
+		if (Machine.processor().hasTLB())
+			VMKernel.fillTLB(entry);
+
+		VMKernel.memoryLock.release();
+		return true;
+	}
+
+	/** The COFF section holding each virtual page, or <tt>null</tt>. */
+	private CoffSection[] pageSections;
+
+	/** The shared page mapping each virtual page, or <tt>null</tt>. */
+	private VMKernel.SharedPage[] sharedPages;
+
+	/**
+	 * The swap slot holding a copy of each page, or -1. The copy is current
+	 * whenever the page is not resident, or is resident and clean.
+	 */
+	private int[] swapSlots;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,93 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Each physical page records the last time it was
+ * seen referenced; a page that has not been referenced for longer than the
+ * working-set window, <tt>VMKernel.workingSetWindow</tt> ticks, has left its
+ * process's working set and may be evicted.
+ *
+ * <p>
+ * As with the clock algorithm the hand clears used bits as it passes,
+ * stamping those pages with the current time. The first clean page outside
+ * the working set is taken. Dirty pages outside the working set are only
+ * remembered, since in WSClock they would be scheduled for writing and
+ * skipped: if a full revolution finds no clean one, the first such dirty page
+ * is taken, and the cluster written with it will pre-clean the others. If no
+ * page at all is outside the working set, the least recently used clean page
+ * is taken, or the least recently used page if all are dirty.
+ *
+ * <p>
+ * Times are taken from the machine's global clock rather than each
+ * process's own running time, so a process that does not run for a while
+ * loses its working set.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		lastUsed = new long[numFrames];
+
+		window = Config.getInteger("VMKernel.workingSetWindow",
+				defaultWindow);
+		Lib.assertTrue(window > 0);
+	}
+
+	public void frameAllocated(int ppn) {
+		lastUsed[ppn] = Machine.timer().getTime();
+	}
+
+	public int chooseVictim() {
+		long now = Machine.timer().getTime();
+		int oldDirty = -1, oldestClean = -1, oldest = -1;
+
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			TranslationEntry entry = VMKernel.getFrameEntry(ppn);
+			if (entry.used) {
+				entry.used = false;
+				lastUsed[ppn] = now;
+			}
+			else if (now - lastUsed[ppn] > window) {
+				if (!entry.dirty)
+					return ppn;
+				else if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+
+			if (!entry.dirty
+					&& (oldestClean == -1 || lastUsed[ppn] < lastUsed[oldestClean]))
+				oldestClean = ppn;
+			if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+				oldest = ppn;
+		}
+
+		int victim;
+		if (oldDirty != -1)
+			victim = oldDirty;
+		else if (oldestClean != -1)
+			victim = oldestClean;
+		else
+			victim = oldest;
+
+		hand = (victim + 1) % numFrames;
+		return victim;
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+
+	/** The time each physical page was last seen referenced. */
+	private long[] lastUsed;
+
+	/** The working-set window, in ticks. */
+	private int window;
+
+	private static final int defaultWindow = 10000;
+}